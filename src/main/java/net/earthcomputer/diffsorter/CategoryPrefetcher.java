@@ -0,0 +1,248 @@
+package net.earthcomputer.diffsorter;
+
+import com.github.difflib.patch.AbstractDelta;
+import com.github.difflib.unifieddiff.UnifiedDiff;
+import com.github.difflib.unifieddiff.UnifiedDiffFile;
+
+import javax.swing.*;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+/**
+ * Renders the recently used categories and trains the models for sorting them in the background, so switching back
+ * to one of them doesn't have to wait for a full refresh. Views are kept in most recently used order up to a memory
+ * cap, and are dropped as soon as a hunk moves in or out of their category.
+ */
+public class CategoryPrefetcher {
+
+    // the number of recently used categories, other than the current one, to keep ready
+    private static final int PREFETCH_CATEGORIES = 3;
+    private static final long MEMORY_CAP = Runtime.getRuntime().maxMemory() / 8;
+
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "Category prefetcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // most recently used first
+    private static final LinkedList<String> recentCategories = new LinkedList<>();
+    private static final LinkedHashMap<String, View> views = new LinkedHashMap<>(16, 0.75f, true);
+    private static long viewsSize;
+    private static final Map<String, Model> models = new HashMap<>();
+    // incremented whenever hunks move, so that prefetches started before then are thrown away
+    private static int version;
+
+    public static synchronized void clear() {
+        recentCategories.clear();
+        views.clear();
+        viewsSize = 0;
+        models.clear();
+        version++;
+    }
+
+    public static synchronized void invalidate(String category) {
+        removeView(category);
+        version++;
+    }
+
+    // The words of the old and new hunks of the category are null if the models have to be retrained
+    public static synchronized void categoryReloaded(String category, List<Map<String, Integer>> oldWords, List<Map<String, Integer>> newWords) {
+        removeView(category);
+        if (oldWords == null)
+            models.clear();
+        else
+            models.values().removeIf(model -> !ProgramState.updateModel(model.classifier, category, oldWords, newWords));
+        version++;
+    }
+
+    public static synchronized void hunkMoved(Map<String, Integer> words, String fromCategory, String toCategory) {
+        removeView(fromCategory);
+        removeView(toCategory);
+        models.values().removeIf(model -> !model.classifier.update(words, fromCategory, toCategory));
+        // hunks were just moved here, so it's likely to be looked at soon
+        if (toCategory != null && !recentCategories.isEmpty() && !toCategory.equals(recentCategories.getFirst())) {
+            recentCategories.remove(toCategory);
+            recentCategories.add(1, toCategory);
+        }
+        version++;
+    }
+
+    // Returns the prefetched view of the category, if there is one and it's still up to date
+    public static synchronized DiffSorter.RenderedCategory getView(String category) {
+        View view = views.get(category);
+        if (view == null || ProgramState.streaming || view.windowStart != ProgramState.windowStart
+                || !view.searchQuery.equals(ProgramState.searchQuery))
+            return null;
+        return view.rendered;
+    }
+
+    public static synchronized void putModel(String category, HunkClassifier classifier, Set<String> categories) {
+        models.put(category, new Model(classifier, new HashSet<>(categories)));
+    }
+
+    public static synchronized HunkClassifier takeModel(String category, String classifierName, Set<String> categories) {
+        Model model = models.remove(category);
+        if (model == null || !model.classifier.getName().equals(classifierName) || !model.categories.equals(categories))
+            return null;
+        return model.classifier;
+    }
+
+    // Called once a category has been shown, to keep its view and start prefetching the others
+    public static void categoryShown(String category, DiffSorter.RenderedCategory rendered) {
+        // in streaming mode the hunks are only in memory while they're shown, so there's nothing to prefetch
+        if (ProgramState.streaming)
+            return;
+        synchronized (CategoryPrefetcher.class) {
+            recentCategories.remove(category);
+            recentCategories.addFirst(category);
+            while (recentCategories.size() > PREFETCH_CATEGORIES + 1)
+                recentCategories.removeLast();
+            models.keySet().retainAll(recentCategories);
+            putView(category, new View(rendered, ProgramState.windowStart, ProgramState.searchQuery));
+        }
+        SwingUtilities.invokeLater(CategoryPrefetcher::prefetch);
+    }
+
+    private static void prefetch() {
+        List<String> toRender = new ArrayList<>();
+        List<String> toTrain = new ArrayList<>();
+        // a model which can't be updated would be dropped by the next move, and retraining it after every move would
+        // keep the background thread busy for nothing
+        boolean prefetchModels = ProgramState.getClassifier().isUpdatedIncrementally();
+        int startVersion;
+        synchronized (CategoryPrefetcher.class) {
+            int count = 0;
+            for (String category : recentCategories) {
+                if (count == PREFETCH_CATEGORIES)
+                    break;
+                if (category.equals(ProgramState.currentCategory) || !ProgramState.categories.containsKey(category))
+                    continue;
+                count++;
+                View view = views.get(category);
+                // categories are always switched to at their first window
+                if (view == null || view.windowStart != 0 || !view.searchQuery.equals(ProgramState.searchQuery))
+                    toRender.add(category);
+                if (prefetchModels && !hasModel(category))
+                    toTrain.add(category);
+            }
+            startVersion = version;
+        }
+        if (toRender.isEmpty() && toTrain.isEmpty())
+            return;
+
+        // the categories are changed on the event thread, so the background thread works on copies of them
+        Map<String, List<AbstractDelta<String>>> hunks = new HashMap<>();
+        if (!toTrain.isEmpty()) {
+            ProgramState.categories.forEach((category, diff) -> {
+                List<AbstractDelta<String>> deltas = new ArrayList<>();
+                for (UnifiedDiffFile file : diff.getFiles())
+                    deltas.addAll(file.getPatch().getDeltas());
+                hunks.put(category, deltas);
+            });
+        }
+        Set<String> categories = new HashSet<>(ProgramState.categories.keySet());
+        String searchQuery = ProgramState.searchQuery;
+        String classifierName = ProgramState.getClassifier().getName();
+        for (String category : toRender) {
+            UnifiedDiff diff = snapshot(ProgramState.categories.get(category));
+            submit(startVersion, () -> {
+                Set<AbstractDelta<String>> matches = searchQuery.isEmpty() ? null : SearchIndex.search(searchQuery, category);
+                DiffSorter.RenderedCategory rendered = DiffSorter.render(diff, 0, ProgramState.windowEnd(diff, 0), matches, null);
+                return () -> putView(category, new View(rendered, 0, searchQuery));
+            });
+        }
+        for (String category : toTrain) {
+            HunkClassifier classifier = ProgramState.CLASSIFIERS.get(classifierName).get();
+            submit(startVersion, () -> {
+                ProgramState.trainModel(classifier, category, hunks);
+                return () -> models.put(category, new Model(classifier, categories));
+            });
+        }
+    }
+
+    // Runs the task in the background, then stores its result unless hunks have moved since the prefetch started
+    private static void submit(int startVersion, Supplier<Runnable> task) {
+        EXECUTOR.submit(() -> {
+            try {
+                synchronized (CategoryPrefetcher.class) {
+                    if (version != startVersion)
+                        return;
+                }
+                Runnable store = task.get();
+                synchronized (CategoryPrefetcher.class) {
+                    if (version == startVersion)
+                        store.run();
+                }
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+        });
+    }
+
+    private static boolean hasModel(String category) {
+        Model model = models.get(category);
+        return model != null && model.classifier.getName().equals(ProgramState.getClassifier().getName())
+                && model.categories.equals(ProgramState.categories.keySet());
+    }
+
+    private static UnifiedDiff snapshot(UnifiedDiff diff) {
+        UnifiedDiff copy = UnifiedDiff.from(diff.getHeader(), diff.getTail());
+        for (UnifiedDiffFile file : diff.getFiles()) {
+            UnifiedDiffFile fileCopy = new UnifiedDiffFile();
+            fileCopy.setDiffCommand(file.getDiffCommand());
+            fileCopy.setFromFile(file.getFromFile());
+            fileCopy.setToFile(file.getToFile());
+            fileCopy.setIndex(file.getIndex());
+            for (AbstractDelta<String> delta : file.getPatch().getDeltas())
+                fileCopy.getPatch().addDelta(delta);
+            copy.getFiles().add(fileCopy);
+        }
+        return copy;
+    }
+
+    private static void putView(String category, View view) {
+        removeView(category);
+        views.put(category, view);
+        viewsSize += view.size;
+        // evict the least recently used, but always keep the one just added
+        Iterator<View> itr = views.values().iterator();
+        while (viewsSize > MEMORY_CAP && views.size() > 1) {
+            viewsSize -= itr.next().size;
+            itr.remove();
+        }
+    }
+
+    private static void removeView(String category) {
+        View view = category == null ? null : views.remove(category);
+        if (view != null)
+            viewsSize -= view.size;
+    }
+
+    private static class View {
+        final DiffSorter.RenderedCategory rendered;
+        final int windowStart;
+        final String searchQuery;
+        final long size;
+
+        View(DiffSorter.RenderedCategory rendered, int windowStart, String searchQuery) {
+            this.rendered = rendered;
+            this.windowStart = windowStart;
+            this.searchQuery = searchQuery;
+            this.size = rendered.estimateSize();
+        }
+    }
+
+    private static class Model {
+        final HunkClassifier classifier;
+        final Set<String> categories;
+
+        Model(HunkClassifier classifier, Set<String> categories) {
+            this.classifier = classifier;
+            this.categories = categories;
+        }
+    }
+
+}
@@ -0,0 +1,156 @@
+package net.earthcomputer.diffsorter;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * Evaluates the classifiers on a sorted project using k-fold cross-validation over the hunks of each category,
+ * reporting top-1 and top-3 accuracy, training time, scoring throughput and peak heap usage.
+ * If no project directory is given, a synthetic project is generated and evaluated instead.
+ */
+public class ClassifierBenchmark {
+
+    private static final long SEED = 0x5eed;
+
+    public static void main(String[] args) throws IOException {
+        File directory = null;
+        int folds = 5;
+        String classifierName = null;
+        int syntheticCategories = 10;
+        int syntheticHunks = 300;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--folds":
+                    folds = Integer.parseInt(args[++i]);
+                    break;
+                case "--classifier":
+                    classifierName = args[++i];
+                    break;
+                case "--synthetic":
+                    syntheticCategories = Integer.parseInt(args[++i]);
+                    syntheticHunks = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    directory = new File(args[i]);
+                    break;
+            }
+        }
+        if (folds < 2) {
+            System.err.println("Usage: ClassifierBenchmark [--folds <k>] [--classifier <name>] [--synthetic <categories> <hunks per category>] [project directory]");
+            System.exit(1);
+        }
+
+        if (directory == null) {
+            directory = Files.createTempDirectory("diffsorter-synthetic").toFile();
+            SyntheticProject.generate(directory, SEED, syntheticCategories, syntheticHunks);
+            System.out.printf("Generated synthetic project with %d categories of %d hunks in %s%n", syntheticCategories, syntheticHunks, directory);
+        }
+
+        ProgramState.load(null, directory);
+
+        Random rand = new Random(SEED);
+        Map<String, List<Map<String, Integer>>> allData = new HashMap<>();
+        for (String category : ProgramState.categories.keySet()) {
+            if (category.equalsIgnoreCase(ProgramState.currentCategory))
+                continue;
+            List<Map<String, Integer>> examples = ProgramState.extractDataExamples(category);
+            Collections.shuffle(examples, rand);
+            allData.put(category, examples);
+        }
+        System.out.printf("%d categories, %d hunks, %d folds%n", allData.size(), allData.values().stream().mapToInt(List::size).sum(), folds);
+        System.out.printf("%-20s %8s %8s %14s %16s %12s%n", "Classifier", "Top-1", "Top-3", "Training (ms)", "Scoring (hunk/s)", "Peak (MB)");
+
+        for (Map.Entry<String, Supplier<HunkClassifier>> classifier : ProgramState.CLASSIFIERS.entrySet()) {
+            if (classifierName == null || classifierName.equalsIgnoreCase(classifier.getKey()))
+                evaluate(classifier.getKey(), classifier.getValue(), allData, folds);
+        }
+    }
+
+    private static void evaluate(String name, Supplier<HunkClassifier> supplier, Map<String, List<Map<String, Integer>>> allData, int folds) {
+        long trainTime = 0;
+        long scoreTime = 0;
+        int tested = 0, top1 = 0, top3 = 0;
+        long baseline = resetPeakHeapUsage();
+
+        for (int fold = 0; fold < folds; fold++) {
+            Map<String, List<Map<String, Integer>>> trainingData = new HashMap<>();
+            List<Map<String, Integer>> testExamples = new ArrayList<>();
+            List<String> testCategories = new ArrayList<>();
+            for (Map.Entry<String, List<Map<String, Integer>>> category : allData.entrySet()) {
+                List<Map<String, Integer>> training = new ArrayList<>();
+                List<Map<String, Integer>> examples = category.getValue();
+                for (int i = 0; i < examples.size(); i++) {
+                    if (i % folds == fold) {
+                        testExamples.add(examples.get(i));
+                        testCategories.add(category.getKey());
+                    } else {
+                        training.add(examples.get(i));
+                    }
+                }
+                trainingData.put(category.getKey(), training);
+            }
+
+            HunkClassifier classifier = supplier.get();
+            long start = System.nanoTime();
+            classifier.train(trainingData);
+            trainTime += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            List<Map<String, Float>> scores = classifier.scoreBatch(testExamples);
+            scoreTime += System.nanoTime() - start;
+
+            for (int i = 0; i < scores.size(); i++) {
+                Map<String, Float> score = scores.get(i);
+                float actual = score.getOrDefault(testCategories.get(i), 0f);
+                // ties count against the classifier
+                int rank = 0;
+                for (Map.Entry<String, Float> other : score.entrySet()) {
+                    if (!other.getKey().equals(testCategories.get(i)) && other.getValue() >= actual)
+                        rank++;
+                }
+                if (rank < 1)
+                    top1++;
+                if (rank < 3)
+                    top3++;
+            }
+            tested += testExamples.size();
+        }
+
+        long peak = getPeakHeapUsage() - baseline;
+        System.out.printf("%-20s %7.2f%% %7.2f%% %14.1f %16.0f %12.1f%n", name,
+                tested == 0 ? 0 : 100.0 * top1 / tested,
+                tested == 0 ? 0 : 100.0 * top3 / tested,
+                trainTime / 1e6 / folds,
+                scoreTime == 0 ? 0 : tested / (scoreTime / 1e9),
+                Math.max(0, peak) / (1024.0 * 1024.0));
+    }
+
+    // Returns the heap usage after a GC, which peak usage is measured relative to
+    private static long resetPeakHeapUsage() {
+        System.gc();
+        long usage = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                usage += pool.getUsage().getUsed();
+            }
+        }
+        return usage;
+    }
+
+    private static long getPeakHeapUsage() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP)
+                peak += pool.getPeakUsage().getUsed();
+        }
+        return peak;
+    }
+
+}
@@ -0,0 +1,532 @@
+package net.earthcomputer.diffsorter;
+
+import com.github.difflib.patch.AbstractDelta;
+import com.github.difflib.unifieddiff.UnifiedDiff;
+import com.github.difflib.unifieddiff.UnifiedDiffFile;
+import com.github.difflib.unifieddiff.UnifiedDiffReader;
+import com.github.difflib.unifieddiff.UnifiedDiffWriter;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Indexes the byte ranges of the file headers and hunks in a .diff file, so that saving can copy the original bytes of
+ * each hunk rather than formatting the parsed lines again. In streaming mode the lines of each hunk are also only loaded
+ * when needed, through an LRU cache.
+ */
+public class DiffIndex {
+
+    private static final Pattern HUNK_HEADER = Pattern.compile("^@@\\s+-\\d+(?:,(\\d+))?\\s+\\+\\d+(?:,(\\d+))?\\s+@@");
+    private static final long CACHE_LIMIT = 64L * 1024 * 1024;
+
+    private static final Set<Source> openSources = Collections.newSetFromMap(new IdentityHashMap<>());
+    private static final LinkedHashMap<Range, List<String>[]> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private static long cacheSize;
+
+    // Indexes the given file, adding the ranges of its file headers and hunks to the given maps
+    public static UnifiedDiff index(File file, boolean lazy, Map<AbstractDelta<String>, Range> hunkRanges, Map<UnifiedDiffFile, Range> fileHeaderRanges) throws IOException {
+        Source source = new Source(file);
+        // in memory, the lines are kept in a store shared by the whole file rather than as separate strings
+        LineStore lineStore = lazy ? null : new LineStore();
+        UnifiedDiff diff = null;
+
+        try (InputStream in = new FileInputStream(file)) {
+            LineReader reader = new LineReader(in);
+            ByteArrayOutputStream preamble = new ByteArrayOutputStream();
+            IndexedFile current = null;
+            int oldRemaining = 0, newRemaining = 0;
+            boolean missingNewline = false;
+
+            while (reader.next()) {
+                missingNewline = reader.line[reader.lineLength - 1] != '\n';
+                if (oldRemaining > 0 || newRemaining > 0) {
+                    switch (reader.firstByte()) {
+                        case '\\':
+                            break;
+                        case '-':
+                            oldRemaining--;
+                            break;
+                        case '+':
+                            newRemaining--;
+                            break;
+                        default:
+                            oldRemaining--;
+                            newRemaining--;
+                            break;
+                    }
+                    current.append(reader);
+                    continue;
+                }
+
+                if (reader.startsWith("@@")) {
+                    Matcher matcher = HUNK_HEADER.matcher(reader.lineAsString());
+                    if (matcher.find()) {
+                        if (current == null)
+                            current = new IndexedFile(reader.lineStart);
+                        current.hunkStarts.add(reader.lineStart);
+                        oldRemaining = matcher.group(1) == null ? 1 : Integer.parseInt(matcher.group(1));
+                        newRemaining = matcher.group(2) == null ? 1 : Integer.parseInt(matcher.group(2));
+                    }
+                } else if (reader.startsWith("diff ") || reader.startsWith("Only in ")
+                        || (reader.startsWith("--- ") && (current == null || current.seenFromFile || !current.hunkStarts.isEmpty()))) {
+                    if (current != null) {
+                        if (diff == null)
+                            diff = UnifiedDiff.from(new String(preamble.toByteArray(), StandardCharsets.UTF_8), null);
+                        current.finish(source, reader.lineStart, false, diff, lineStore, hunkRanges, fileHeaderRanges);
+                    }
+                    current = new IndexedFile(reader.lineStart);
+                    // an "Only in" line is a complete file header by itself
+                    current.seenFromFile = reader.startsWith("Only in ");
+                }
+                if (current == null) {
+                    preamble.write(reader.line, 0, reader.lineLength);
+                } else {
+                    if (reader.startsWith("--- "))
+                        current.seenFromFile = true;
+                    current.append(reader);
+                }
+            }
+
+            if (diff == null)
+                diff = UnifiedDiff.from(new String(preamble.toByteArray(), StandardCharsets.UTF_8), null);
+            if (current != null)
+                current.finish(source, reader.position, missingNewline, diff, lineStore, hunkRanges, fileHeaderRanges);
+        }
+        if (lineStore != null)
+            lineStore.freeze();
+
+        return diff;
+    }
+
+    private static class IndexedFile {
+        final long start;
+        final List<Long> hunkStarts = new ArrayList<>();
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        boolean seenFromFile;
+
+        IndexedFile(long start) {
+            this.start = start;
+        }
+
+        void append(LineReader reader) {
+            bytes.write(reader.line, 0, reader.lineLength);
+        }
+
+        // The lines are loaded lazily if lineStore is null, and otherwise kept in lineStore. missingNewline is whether
+        // the file ends at the end of the diff file, which has no final newline.
+        void finish(Source source, long end, boolean missingNewline, UnifiedDiff diff, LineStore lineStore,
+                    Map<AbstractDelta<String>, Range> hunkRanges, Map<UnifiedDiffFile, Range> fileHeaderRanges) throws IOException {
+            UnifiedDiff parsed = UnifiedDiffReader.parseUnifiedDiff(new ByteArrayInputStream(bytes.toByteArray()));
+            if (parsed.getFiles().size() != 1 || parsed.getFiles().get(0).getPatch().getDeltas().size() != hunkStarts.size()) {
+                // not a layout we understand, keep it in memory as it was parsed
+                if (lineStore != null) {
+                    for (UnifiedDiffFile file : parsed.getFiles()) {
+                        for (AbstractDelta<String> delta : file.getPatch().getDeltas())
+                            storeLines(delta, lineStore);
+                    }
+                }
+                diff.getFiles().addAll(parsed.getFiles());
+                return;
+            }
+
+            UnifiedDiffFile file = parsed.getFiles().get(0);
+            Range headerRange = new Range(source, start, hunkStarts.isEmpty() ? end : hunkStarts.get(0));
+            headerRange.missingNewline = missingNewline && hunkStarts.isEmpty();
+            fileHeaderRanges.put(file, headerRange);
+            List<AbstractDelta<String>> deltas = file.getPatch().getDeltas();
+            for (int i = 0; i < deltas.size(); i++) {
+                AbstractDelta<String> delta = deltas.get(i);
+                Range range = new Range(source, hunkStarts.get(i), i == deltas.size() - 1 ? end : hunkStarts.get(i + 1));
+                range.missingNewline = missingNewline && i == deltas.size() - 1;
+                hunkRanges.put(delta, range);
+                if (lineStore != null) {
+                    storeLines(delta, lineStore);
+                } else {
+                    int sourceSize = delta.getSource().size();
+                    int targetSize = delta.getTarget().size();
+                    delta.getSource().setLines(new HunkLines(range, sourceSize, targetSize, false));
+                    delta.getTarget().setLines(new HunkLines(range, sourceSize, targetSize, true));
+                }
+            }
+            diff.getFiles().add(file);
+        }
+
+        private static void storeLines(AbstractDelta<String> delta, LineStore lineStore) {
+            delta.getSource().setLines(lineStore.store(delta.getSource().getLines()));
+            delta.getTarget().setLines(lineStore.store(delta.getTarget().getLines()));
+        }
+    }
+
+    /**
+     * Writes a category by copying the byte ranges of its file headers and hunks, merging adjacent ranges into a single
+     * transfer. Files which have hunks without a known range are formatted from their parsed lines instead. The new
+     * locations of the copied ranges are added to {@code remaps}, to be applied once the output file has been moved
+     * into place as {@code newSource}.
+     */
+    public static void write(UnifiedDiff diff, File output, Source newSource, List<Runnable> remaps) throws IOException {
+        try (Output out = new Output(FileChannel.open(output.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE), newSource, remaps)) {
+            if (diff.getHeader() != null && !diff.getHeader().isEmpty())
+                out.write(diff.getHeader());
+
+            for (UnifiedDiffFile file : diff.getFiles()) {
+                boolean allRanges = true;
+                for (AbstractDelta<String> delta : file.getPatch().getDeltas())
+                    allRanges &= ProgramState.hunkRanges.containsKey(delta);
+                if (!allRanges) {
+                    forgetRanges(file);
+                    StringWriter writer = new StringWriter();
+                    UnifiedDiffWriter.write(UnifiedDiff.from("", "", file), null, writer, 0);
+                    out.write(writer.toString());
+                    continue;
+                }
+
+                Range headerRange = ProgramState.fileHeaderRanges.get(file);
+                if (headerRange != null)
+                    out.copy(headerRange);
+                else
+                    out.write(formatFileHeader(file));
+                for (AbstractDelta<String> delta : file.getPatch().getDeltas())
+                    out.copy(ProgramState.hunkRanges.get(delta));
+            }
+        }
+    }
+
+    // The hunks of a file which is formatted won't be at their old offsets in the new file, so their ranges can't be
+    // used after the save. Lazily loaded lines are read now, while the old file is still there.
+    private static void forgetRanges(UnifiedDiffFile file) {
+        ProgramState.fileHeaderRanges.remove(file);
+        for (AbstractDelta<String> delta : file.getPatch().getDeltas()) {
+            ProgramState.hunkRanges.remove(delta);
+            if (delta.getSource().getLines() instanceof HunkLines)
+                delta.getSource().setLines(new ArrayList<>(delta.getSource().getLines()));
+            if (delta.getTarget().getLines() instanceof HunkLines)
+                delta.getTarget().setLines(new ArrayList<>(delta.getTarget().getLines()));
+        }
+    }
+
+    private static String formatFileHeader(UnifiedDiffFile file) {
+        StringBuilder header = new StringBuilder();
+        if (file.getDiffCommand() != null)
+            header.append(file.getDiffCommand()).append("\n");
+        if (file.getIndex() != null)
+            header.append("index ").append(file.getIndex()).append("\n");
+        if (file.getFromFile() != null)
+            header.append("--- ").append(file.getFromFile()).append("\n");
+        if (file.getToFile() != null)
+            header.append("+++ ").append(file.getToFile()).append("\n");
+        return header.toString();
+    }
+
+    private static class Output implements Closeable {
+        private final FileChannel channel;
+        private final Source newSource;
+        private final List<Runnable> remaps;
+        private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        // position in the output, including the bytes that are buffered or waiting to be copied
+        private long position;
+        private Source pendingSource;
+        private long pendingStart, pendingEnd;
+
+        Output(FileChannel channel, Source newSource, List<Runnable> remaps) {
+            this.channel = channel;
+            this.newSource = newSource;
+            this.remaps = remaps;
+        }
+
+        void write(String text) throws IOException {
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            flushPending();
+            if (bytes.length > buffer.remaining()) {
+                flushBuffer();
+                if (bytes.length > buffer.capacity()) {
+                    writeFully(ByteBuffer.wrap(bytes));
+                    position += bytes.length;
+                    return;
+                }
+            }
+            buffer.put(bytes);
+            position += bytes.length;
+        }
+
+        void copy(Range range) throws IOException {
+            if (pendingSource != range.source || pendingEnd != range.start) {
+                flushPending();
+                flushBuffer();
+                pendingSource = range.source;
+                pendingStart = pendingEnd = range.start;
+            }
+            pendingEnd = range.end;
+
+            long newStart = position;
+            long length = range.end - range.start;
+            position += length;
+            // the range may be followed by other ranges, so its line has to be ended, and it takes the newline with it
+            boolean missingNewline = range.missingNewline;
+            if (missingNewline)
+                write("\n");
+            remaps.add(() -> {
+                range.source = newSource;
+                range.start = newStart;
+                range.end = newStart + length + (missingNewline ? 1 : 0);
+                range.missingNewline = false;
+            });
+        }
+
+        private void flushPending() throws IOException {
+            if (pendingSource == null)
+                return;
+            FileChannel in = pendingSource.channel();
+            long length = pendingEnd - pendingStart;
+            long copied = 0;
+            while (copied < length) {
+                long n = in.transferTo(pendingStart + copied, length - copied, channel);
+                if (n <= 0)
+                    throw new EOFException("Unexpected end of " + pendingSource.file);
+                copied += n;
+            }
+            pendingSource = null;
+        }
+
+        private void flushBuffer() throws IOException {
+            buffer.flip();
+            writeFully(buffer);
+            buffer.clear();
+        }
+
+        private void writeFully(ByteBuffer bytes) throws IOException {
+            while (bytes.hasRemaining())
+                channel.write(bytes);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flushPending();
+                flushBuffer();
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    // Closes the open files, so they can be moved or deleted. They are reopened when next read from.
+    public static synchronized void closeSources() {
+        for (Source source : openSources)
+            source.close();
+        openSources.clear();
+    }
+
+    public static synchronized void clear() {
+        closeSources();
+        cache.clear();
+        cacheSize = 0;
+    }
+
+    private static synchronized List<String>[] getLines(Range range, int sourceSize, int targetSize) {
+        List<String>[] lines = cache.get(range);
+        if (lines != null)
+            return lines;
+
+        try {
+            lines = parseHunk(range.read(), sourceSize, targetSize);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        cache.put(range, lines);
+        cacheSize += range.end - range.start;
+        Iterator<Map.Entry<Range, List<String>[]>> itr = cache.entrySet().iterator();
+        while (cacheSize > CACHE_LIMIT && itr.hasNext()) {
+            Range eldest = itr.next().getKey();
+            if (eldest == range)
+                break;
+            cacheSize -= eldest.end - eldest.start;
+            itr.remove();
+        }
+        return lines;
+    }
+
+    private static List<String>[] parseHunk(byte[] bytes, int sourceSize, int targetSize) {
+        List<String> source = new ArrayList<>(sourceSize);
+        List<String> target = new ArrayList<>(targetSize);
+        String[] lines = new String(bytes, StandardCharsets.UTF_8).split("\n", -1);
+        // skip the @@ line
+        for (int i = 1; i < lines.length && (source.size() < sourceSize || target.size() < targetSize); i++) {
+            String line = lines[i];
+            if (line.endsWith("\r"))
+                line = line.substring(0, line.length() - 1);
+            if (line.startsWith("\\"))
+                continue;
+            char type = line.isEmpty() ? ' ' : line.charAt(0);
+            String content = line.isEmpty() ? "" : line.substring(1);
+            if (type != '+')
+                source.add(content);
+            if (type != '-')
+                target.add(content);
+        }
+        @SuppressWarnings("unchecked")
+        List<String>[] result = new List[] {source, target};
+        return result;
+    }
+
+    public static class Source {
+        private File file;
+        private FileChannel channel;
+
+        public Source(File file) {
+            this.file = file;
+        }
+
+        FileChannel channel() throws IOException {
+            synchronized (DiffIndex.class) {
+                if (channel == null) {
+                    channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                    openSources.add(this);
+                }
+                return channel;
+            }
+        }
+
+        void close() {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                channel = null;
+            }
+        }
+    }
+
+    public static class Range {
+        private Source source;
+        private long start;
+        private long end;
+        // whether the range is at the end of a file which doesn't end with a newline
+        private boolean missingNewline;
+
+        public Range(Source source, long start, long end) {
+            this.source = source;
+            this.start = start;
+            this.end = end;
+        }
+
+        public boolean isIn(File file) {
+            return source.file.equals(file);
+        }
+
+        public Range copy() {
+            Range copy = new Range(source, start, end);
+            copy.missingNewline = missingNewline;
+            return copy;
+        }
+
+        byte[] read() throws IOException {
+            byte[] bytes = new byte[(int) (end - start)];
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            FileChannel channel = source.channel();
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, start + buffer.position()) < 0)
+                    throw new EOFException("Unexpected end of " + source.file);
+            }
+            return bytes;
+        }
+    }
+
+    private static class HunkLines extends AbstractList<String> {
+        private final Range range;
+        private final int sourceSize;
+        private final int targetSize;
+        private final boolean target;
+
+        HunkLines(Range range, int sourceSize, int targetSize, boolean target) {
+            this.range = range;
+            this.sourceSize = sourceSize;
+            this.targetSize = targetSize;
+            this.target = target;
+        }
+
+        @Override
+        public String get(int index) {
+            return getLines(range, sourceSize, targetSize)[target ? 1 : 0].get(index);
+        }
+
+        @Override
+        public int size() {
+            return target ? targetSize : sourceSize;
+        }
+
+        @Override
+        public Iterator<String> iterator() {
+            // fetch the lines once rather than going through the cache for every line
+            return getLines(range, sourceSize, targetSize)[target ? 1 : 0].iterator();
+        }
+    }
+
+    private static class LineReader {
+        private final InputStream in;
+        private final byte[] buffer = new byte[65536];
+        private int bufferPos, bufferLength;
+        byte[] line = new byte[256];
+        int lineLength;
+        long lineStart;
+        long position;
+
+        LineReader(InputStream in) {
+            this.in = in;
+        }
+
+        // Reads the next line including its line terminator, returning false at the end of the stream
+        boolean next() throws IOException {
+            lineStart = position;
+            lineLength = 0;
+            while (true) {
+                if (bufferPos == bufferLength) {
+                    bufferLength = Math.max(0, in.read(buffer));
+                    bufferPos = 0;
+                    if (bufferLength == 0)
+                        return lineLength > 0;
+                }
+                int start = bufferPos;
+                while (bufferPos < bufferLength && buffer[bufferPos] != '\n')
+                    bufferPos++;
+                boolean endOfLine = bufferPos < bufferLength;
+                if (endOfLine)
+                    bufferPos++;
+                int length = bufferPos - start;
+                if (lineLength + length > line.length)
+                    line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + length));
+                System.arraycopy(buffer, start, line, lineLength, length);
+                lineLength += length;
+                position += length;
+                if (endOfLine)
+                    return true;
+            }
+        }
+
+        int firstByte() {
+            return lineLength == 0 ? -1 : line[0];
+        }
+
+        boolean startsWith(String prefix) {
+            if (lineLength < prefix.length())
+                return false;
+            for (int i = 0; i < prefix.length(); i++) {
+                if (line[i] != prefix.charAt(i))
+                    return false;
+            }
+            return true;
+        }
+
+        String lineAsString() {
+            return new String(line, 0, lineLength, StandardCharsets.UTF_8);
+        }
+    }
+
+}
@@ -5,9 +5,6 @@ import com.github.difflib.patch.AbstractDelta;
 import com.github.difflib.text.DiffRow;
 import com.github.difflib.unifieddiff.UnifiedDiff;
 import com.github.difflib.unifieddiff.UnifiedDiffFile;
-import de.sciss.syntaxpane.DefaultSyntaxKit;
-import de.sciss.syntaxpane.SyntaxDocument;
-import de.sciss.syntaxpane.syntaxkits.JavaSyntaxKit;
 
 import javax.swing.*;
 import javax.swing.text.*;
@@ -28,6 +25,8 @@ public class DiffSorter {
     private JPanel categoryPanel;
     private JPanel addToPanel;
     private JComboBox<String> categoriesComboBox;
+    private LazySyntaxHighlighter leftSyntaxHighlighter;
+    private LazySyntaxHighlighter rightSyntaxHighlighter;
 
     public static void main(String[] args) {
         JFrame frame = new JFrame("DiffSorter");
@@ -51,10 +50,17 @@ public class DiffSorter {
                 JMenuItem openItem = new JMenuItem("Open");
                 openItem.setMnemonic(KeyEvent.VK_O);
                 openItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_O, KeyEvent.CTRL_DOWN_MASK));
-                openItem.addActionListener(e -> open(frame));
+                openItem.addActionListener(e -> open(frame, false));
                 fileMenu.add(openItem);
             }
 
+            {
+                JMenuItem openStreamingItem = new JMenuItem("Open Streaming");
+                openStreamingItem.setMnemonic(KeyEvent.VK_T);
+                openStreamingItem.addActionListener(e -> open(frame, true));
+                fileMenu.add(openStreamingItem);
+            }
+
             {
                 JMenuItem saveItem = new JMenuItem("Save");
                 saveItem.setMnemonic(KeyEvent.VK_S);
@@ -65,11 +71,30 @@ public class DiffSorter {
 
             menuBar.add(fileMenu);
         }
+        {
+            JMenu modelMenu = new JMenu("Model");
+            modelMenu.setMnemonic(KeyEvent.VK_M);
+
+            ButtonGroup group = new ButtonGroup();
+            ProgramState.CLASSIFIERS.forEach((name, classifier) -> {
+                JRadioButtonMenuItem item = new JRadioButtonMenuItem(name);
+                item.setSelected(name.equals(ProgramState.getClassifier().getName()));
+                item.addActionListener(e -> {
+                    ProgramState.setClassifier(classifier.get());
+                    if (ProgramState.currentCategory != null)
+                        ProgramState.ui.refresh(frame);
+                });
+                group.add(item);
+                modelMenu.add(item);
+            });
+
+            menuBar.add(modelMenu);
+        }
 
         return menuBar;
     }
 
-    private static void open(JFrame frame) {
+    private static void open(JFrame frame, boolean streaming) {
         JFileChooser fileChooser = new JFileChooser();
         fileChooser.setCurrentDirectory(new File("."));
         fileChooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
@@ -77,7 +102,10 @@ public class DiffSorter {
             return;
         ProgramState.saveDir = fileChooser.getSelectedFile();
         try {
-            ProgramState.load(frame, fileChooser.getSelectedFile());
+            if (streaming)
+                ProgramState.load(frame, fileChooser.getSelectedFile(), true);
+            else
+                ProgramState.load(frame, fileChooser.getSelectedFile());
         } catch (IOException e) {
             e.printStackTrace();
             JOptionPane.showMessageDialog(frame, "An I/O error occurred", "Error", JOptionPane.ERROR_MESSAGE);
@@ -109,6 +137,32 @@ public class DiffSorter {
         }
     }
 
+    // The text and highlights of a category, which can be built off the event thread and kept for later
+    static class RenderedCategory {
+        final List<Highlight> leftHighlights = new ArrayList<>();
+        final List<Highlight> rightHighlights = new ArrayList<>();
+        final List<Highlight> leftOverlayHighlights = new ArrayList<>();
+        final List<Highlight> rightOverlayHighlights = new ArrayList<>();
+        final List<LazySyntaxHighlighter.Region> leftSyntaxRegions = new ArrayList<>();
+        final List<LazySyntaxHighlighter.Region> rightSyntaxRegions = new ArrayList<>();
+        final List<ProgramState.HunkPos> leftHunkPositions = new ArrayList<>();
+        final List<Integer> leftFilePositions = new ArrayList<>();
+        final List<ProgramState.HunkPos> rightHunkPositions = new ArrayList<>();
+        final List<Integer> rightFilePositions = new ArrayList<>();
+        final List<AbstractDelta<String>> shownDeltas = new ArrayList<>();
+        DefaultStyledDocument leftDocument;
+        DefaultStyledDocument rightDocument;
+
+        // a rough estimate of the memory used, in bytes
+        long estimateSize() {
+            long chars = leftDocument.getLength() + rightDocument.getLength();
+            long objects = leftHighlights.size() + rightHighlights.size() + leftOverlayHighlights.size() + rightOverlayHighlights.size()
+                    + leftSyntaxRegions.size() + rightSyntaxRegions.size() + leftHunkPositions.size() + rightHunkPositions.size();
+            // the documents have several objects per line on top of the characters themselves
+            return chars * 8 + objects * 48;
+        }
+    }
+
     public void refresh(JFrame frame) {
         // Category panel
         categoryPanel.removeAll();
@@ -119,6 +173,7 @@ public class DiffSorter {
         categoriesComboBox.setSelectedItem(ProgramState.currentCategory);
         categoriesComboBox.addActionListener(e -> {
             ProgramState.currentCategory = (String) categoriesComboBox.getSelectedItem();
+            ProgramState.windowStart = 0;
             ProgramState.selectedFile = 0;
             ProgramState.selectedHunk = -1;
             refresh(frame);
@@ -133,6 +188,8 @@ public class DiffSorter {
                         JOptionPane.showMessageDialog(frame, "There is already a category with that name");
                     } else {
                         ProgramState.categories.put(name, UnifiedDiff.from("", ""));
+                        ProgramState.dirtyCategories.add(name);
+                        CategoryPrefetcher.invalidate(name);
                         refresh(frame);
                     }
                 }
@@ -149,102 +206,89 @@ public class DiffSorter {
                         JOptionPane.YES_NO_OPTION,
                         JOptionPane.WARNING_MESSAGE) != JOptionPane.YES_OPTION)
                     return;
-                ProgramState.categories.remove(ProgramState.currentCategory);
+                UnifiedDiff deleted = ProgramState.categories.remove(ProgramState.currentCategory);
+                for (UnifiedDiffFile file : deleted.getFiles()) {
+                    for (AbstractDelta<String> delta : file.getPatch().getDeltas())
+                        SearchIndex.remove(delta);
+                }
+                ProgramState.dirtyCategories.add(ProgramState.currentCategory);
+                CategoryPrefetcher.invalidate(ProgramState.currentCategory);
                 ProgramState.selectedFile = 0;
                 ProgramState.selectedHunk = -1;
                 ProgramState.currentCategory = "unsorted";
+                ProgramState.windowStart = 0;
                 refresh(frame);
             });
             categoryPanel.add(button);
         }
+        {
+            ProgramState.searchMatches = ProgramState.searchQuery.isEmpty() ? null : SearchIndex.search(ProgramState.searchQuery, ProgramState.currentCategory);
+            categoryPanel.add(new JLabel("Search: "));
+            JTextField searchField = new JTextField(ProgramState.searchQuery, 15);
+            searchField.addActionListener(e -> {
+                ProgramState.searchQuery = searchField.getText().trim();
+                ProgramState.windowStart = 0;
+                ProgramState.selectedFile = 0;
+                ProgramState.selectedHunk = -1;
+                refresh(frame);
+            });
+            categoryPanel.add(searchField);
+            if (ProgramState.searchMatches != null)
+                categoryPanel.add(new JLabel(String.format("%d matches", ProgramState.searchMatches.size())));
+        }
+        {
+            UnifiedDiff diff = ProgramState.categories.get(ProgramState.currentCategory);
+            int windowEnd = ProgramState.windowEnd(diff);
+            // categories small enough to be shown at once have a single window
+            if (ProgramState.windowStart > 0 || windowEnd < diff.getFiles().size()) {
+                JButton previous = new JButton("Previous");
+                previous.setEnabled(ProgramState.windowStart > 0);
+                previous.addActionListener(e -> {
+                    ProgramState.windowStart = ProgramState.previousWindowStart(diff);
+                    ProgramState.selectedFile = ProgramState.windowStart;
+                    ProgramState.selectedHunk = -1;
+                    refresh(frame);
+                });
+                categoryPanel.add(previous);
+                categoryPanel.add(new JLabel(String.format("Files %d-%d of %d", Math.min(ProgramState.windowStart + 1, windowEnd), windowEnd, diff.getFiles().size())));
+                JButton next = new JButton("Next");
+                next.setEnabled(windowEnd < diff.getFiles().size());
+                next.addActionListener(e -> {
+                    ProgramState.windowStart = windowEnd;
+                    ProgramState.selectedFile = ProgramState.windowStart;
+                    ProgramState.selectedHunk = -1;
+                    refresh(frame);
+                });
+                categoryPanel.add(next);
+            }
+        }
         categoryPanel.revalidate();
 
         ProgressDialog.startLongTask(frame, progress -> {
-            // Editor panes
             leftEditorPane.getHighlighter().removeAllHighlights();
             rightEditorPane.getHighlighter().removeAllHighlights();
-            List<Highlight> leftHighlights = new ArrayList<>();
-            List<Highlight> rightHighlights = new ArrayList<>();
-            List<Highlight> leftOverlayHighlights = new ArrayList<>();
-            List<Highlight> rightOverlayHighlights = new ArrayList<>();
 
-            // apologies for the state of this code
+            UnifiedDiff diff = ProgramState.categories.get(ProgramState.currentCategory);
+            RenderedCategory rendered = CategoryPrefetcher.getView(ProgramState.currentCategory);
+            if (rendered == null)
+                rendered = render(diff, ProgramState.windowStart, ProgramState.windowEnd(diff), ProgramState.searchMatches, progress);
+            ProgramState.retainDiffRows(rendered.shownDeltas);
+
             ProgramState.leftDiffHunkPositions.clear();
+            ProgramState.leftDiffHunkPositions.addAll(rendered.leftHunkPositions);
             ProgramState.leftDiffFilePositions.clear();
+            ProgramState.leftDiffFilePositions.addAll(rendered.leftFilePositions);
             ProgramState.rightDiffHunkPositions.clear();
+            ProgramState.rightDiffHunkPositions.addAll(rendered.rightHunkPositions);
             ProgramState.rightDiffFilePositions.clear();
-            StringBuilder left = new StringBuilder();
-            StringBuilder right = new StringBuilder();
-            UnifiedDiff diff = ProgramState.categories.get(ProgramState.currentCategory);
-            int currentFile = 0;
-            progress.init(diff.getFiles().size(), "Loading files");
-            for (UnifiedDiffFile file : diff.getFiles()) {
-                progress.step(currentFile, String.format("%d / %d", currentFile, diff.getFiles().size()));
-                ProgramState.leftDiffFilePositions.add(left.length());
-                ProgramState.rightDiffFilePositions.add(right.length());
-                if (file.getDiffCommand() != null && file.getDiffCommand().startsWith("Only in")) {
-                    int begin = left.length();
-                    left.append(file.getDiffCommand()).append("\n");
-                    leftHighlights.add(new Highlight(begin, left.length(), Color.YELLOW.brighter()));
-                    begin = right.length();
-                    right.append(file.getDiffCommand()).append("\n");
-                    rightHighlights.add(new Highlight(begin, right.length(), Color.YELLOW.brighter()));
-                    currentFile++;
-                    continue;
-                }
-                int begin = left.length();
-                if (file.getDiffCommand() != null)
-                    left.append(file.getDiffCommand()).append("\n");
-                left.append("--- ").append(file.getFromFile()).append("\n");
-                leftHighlights.add(new Highlight(begin, left.length(), Color.LIGHT_GRAY));
-                begin = right.length();
-                if (file.getDiffCommand() != null)
-                    right.append(file.getDiffCommand()).append("\n");
-                right.append("+++ ").append(file.getToFile()).append("\n");
-                rightHighlights.add(new Highlight(begin, right.length(), Color.LIGHT_GRAY));
-                for (AbstractDelta<String> delta : file.getPatch().getDeltas()) {
-                    int leftHunkStart = left.length();
-                    int rightHunkStart = right.length();
-                    begin = left.length();
-                    left.append("@@ ").append(delta.getSource().getPosition()).append(",").append(delta.getSource().size()).append(" @@\n");
-                    leftHighlights.add(new Highlight(begin, left.length(), Color.LIGHT_GRAY));
-                    begin = right.length();
-                    right.append("@@ ").append(delta.getTarget().getPosition()).append(",").append(delta.getTarget().size()).append(" @@\n");
-                    rightHighlights.add(new Highlight(begin, right.length(), Color.LIGHT_GRAY));
-                    int leftInlineBegin = -1;
-                    int rightInlineBegin = -1;
-
-                    List<DiffRow> lines = ProgramState.diffRowCache.computeIfAbsent(delta, d -> {
-                        try {
-                            return ProgramState.DIFF_ROW_GENERATOR.generateDiffRows(d.getSource().getLines(), d.getTarget().getLines());
-                        } catch (DiffException e) {
-                            left.append("Exception generating diff\n");
-                            right.append("\n");
-                            e.printStackTrace();
-                            return null;
-                        }
-                    });
-                    if (lines != null) {
-                        for (DiffRow line : lines) {
-                            leftInlineBegin = addDiffLine(left, leftHighlights, leftOverlayHighlights,
-                                    line.getOldLine(), line.getTag(), leftInlineBegin,
-                                    ProgramState.BEGINOLD, ProgramState.ENDOLD, new Color(255, 130, 141), DiffRow.Tag.INSERT);
-                            rightInlineBegin = addDiffLine(right, rightHighlights, rightOverlayHighlights,
-                                    line.getNewLine(), line.getTag(), rightInlineBegin,
-                                    ProgramState.BEGINNEW, ProgramState.ENDNEW, new Color(110, 255, 118), DiffRow.Tag.DELETE);
-                        }
-                    }
-
-                    ProgramState.leftDiffHunkPositions.add(new ProgramState.HunkPos(leftHunkStart, left.length(), currentFile));
-                    ProgramState.rightDiffHunkPositions.add(new ProgramState.HunkPos(rightHunkStart, right.length(), currentFile));
-                }
-                currentFile++;
-            }
+            ProgramState.rightDiffFilePositions.addAll(rendered.rightFilePositions);
             progress.init(5, "Loading");
 
-            progress.step(1, "Parsing Java");
-            leftEditorPane.setText(left.toString());
-            rightEditorPane.setText(right.toString());
+            progress.step(1, "Building documents");
+            // Swing lays out every line of a new document, so this takes time in proportion to the lines shown, which
+            // the window keeps to about 0.5s whatever the category size
+            leftSyntaxHighlighter.setDocument(rendered.leftDocument, rendered.leftSyntaxRegions);
+            rightSyntaxHighlighter.setDocument(rendered.rightDocument, rendered.rightSyntaxRegions);
             progress.step(2, "Diff Highlighter");
             class OverNewlineHighlighter extends DefaultHighlighter.DefaultHighlightPainter {
                 public OverNewlineHighlighter(Color color) {
@@ -270,13 +314,13 @@ public class DiffSorter {
                 }
             }
             try {
-                for (Highlight highlight : leftOverlayHighlights)
+                for (Highlight highlight : rendered.leftOverlayHighlights)
                     leftEditorPane.getHighlighter().addHighlight(highlight.begin, highlight.end, new DefaultHighlighter.DefaultHighlightPainter(highlight.color));
-                for (Highlight highlight : rightOverlayHighlights)
+                for (Highlight highlight : rendered.rightOverlayHighlights)
                     rightEditorPane.getHighlighter().addHighlight(highlight.begin, highlight.end, new DefaultHighlighter.DefaultHighlightPainter(highlight.color));
-                for (Highlight highlight : leftHighlights)
+                for (Highlight highlight : rendered.leftHighlights)
                     leftEditorPane.getHighlighter().addHighlight(highlight.begin, highlight.end, new OverNewlineHighlighter(highlight.color));
-                for (Highlight highlight : rightHighlights)
+                for (Highlight highlight : rendered.rightHighlights)
                     rightEditorPane.getHighlighter().addHighlight(highlight.begin, highlight.end, new OverNewlineHighlighter(highlight.color));
             } catch (BadLocationException e) {
                 e.printStackTrace();
@@ -284,13 +328,121 @@ public class DiffSorter {
 
             progress.step(3, "Regression Model");
             // Regression model
-            ProgramState.createModel();
+            ProgramState.updateModel();
+
+            if (!ProgramState.currentCategory.equals(ProgramState.clusterCategory))
+                HunkClusterer.clusterInBackground(ProgramState.currentCategory);
+            CategoryPrefetcher.categoryShown(ProgramState.currentCategory, rendered);
 
             progress.step(4, "Updating selections");
             updateSelections(frame);
         });
     }
 
+    // Renders the files of the diff between windowStart and windowEnd, or only the hunks in matches if it isn't null
+    static RenderedCategory render(UnifiedDiff diff, int windowStart, int windowEnd, Set<AbstractDelta<String>> matches, ProgressDialog progress) {
+        RenderedCategory rendered = new RenderedCategory();
+        // apologies for the state of this code
+        StringBuilder left = new StringBuilder();
+        StringBuilder right = new StringBuilder();
+        int currentFile = 0;
+        if (progress != null)
+            progress.init(diff.getFiles().size(), "Loading files");
+        for (UnifiedDiffFile file : diff.getFiles()) {
+            if (progress != null)
+                progress.step(currentFile, String.format("%d / %d", currentFile, diff.getFiles().size()));
+            boolean shown = currentFile >= windowStart && currentFile < windowEnd;
+            if (shown && matches != null)
+                shown = file.getPatch().getDeltas().stream().anyMatch(matches::contains);
+            if (!shown) {
+                // not shown, -1 positions keep the indexes of the shown files and hunks the same
+                rendered.leftFilePositions.add(-1);
+                rendered.rightFilePositions.add(-1);
+                for (int i = 0; i < file.getPatch().getDeltas().size(); i++) {
+                    rendered.leftHunkPositions.add(new ProgramState.HunkPos(-1, -1, currentFile));
+                    rendered.rightHunkPositions.add(new ProgramState.HunkPos(-1, -1, currentFile));
+                }
+                currentFile++;
+                continue;
+            }
+            rendered.leftFilePositions.add(left.length());
+            rendered.rightFilePositions.add(right.length());
+            if (file.getDiffCommand() != null && file.getDiffCommand().startsWith("Only in")) {
+                int begin = left.length();
+                left.append(file.getDiffCommand()).append("\n");
+                rendered.leftHighlights.add(new Highlight(begin, left.length(), Color.YELLOW.brighter()));
+                begin = right.length();
+                right.append(file.getDiffCommand()).append("\n");
+                rendered.rightHighlights.add(new Highlight(begin, right.length(), Color.YELLOW.brighter()));
+                currentFile++;
+                continue;
+            }
+            int begin = left.length();
+            if (file.getDiffCommand() != null)
+                left.append(file.getDiffCommand()).append("\n");
+            left.append("--- ").append(file.getFromFile()).append("\n");
+            rendered.leftHighlights.add(new Highlight(begin, left.length(), Color.LIGHT_GRAY));
+            begin = right.length();
+            if (file.getDiffCommand() != null)
+                right.append(file.getDiffCommand()).append("\n");
+            right.append("+++ ").append(file.getToFile()).append("\n");
+            rendered.rightHighlights.add(new Highlight(begin, right.length(), Color.LIGHT_GRAY));
+            for (AbstractDelta<String> delta : file.getPatch().getDeltas()) {
+                if (matches != null && !matches.contains(delta)) {
+                    rendered.leftHunkPositions.add(new ProgramState.HunkPos(-1, -1, currentFile));
+                    rendered.rightHunkPositions.add(new ProgramState.HunkPos(-1, -1, currentFile));
+                    continue;
+                }
+                int leftHunkStart = left.length();
+                int rightHunkStart = right.length();
+                begin = left.length();
+                left.append("@@ ").append(delta.getSource().getPosition()).append(",").append(delta.getSource().size()).append(" @@\n");
+                rendered.leftHighlights.add(new Highlight(begin, left.length(), Color.LIGHT_GRAY));
+                begin = right.length();
+                right.append("@@ ").append(delta.getTarget().getPosition()).append(",").append(delta.getTarget().size()).append(" @@\n");
+                rendered.rightHighlights.add(new Highlight(begin, right.length(), Color.LIGHT_GRAY));
+                int leftInlineBegin = -1;
+                int rightInlineBegin = -1;
+                int leftLinesStart = left.length();
+                int rightLinesStart = right.length();
+
+                List<DiffRow> lines = ProgramState.diffRowCache.computeIfAbsent(delta, d -> {
+                    try {
+                        return ProgramState.DIFF_ROW_GENERATOR.generateDiffRows(d.getSource().getLines(), d.getTarget().getLines());
+                    } catch (DiffException e) {
+                        left.append("Exception generating diff\n");
+                        right.append("\n");
+                        e.printStackTrace();
+                        return null;
+                    }
+                });
+                rendered.shownDeltas.add(delta);
+                if (lines != null) {
+                    for (DiffRow line : lines) {
+                        leftInlineBegin = addDiffLine(left, rendered.leftHighlights, rendered.leftOverlayHighlights,
+                                line.getOldLine(), line.getTag(), leftInlineBegin,
+                                ProgramState.BEGINOLD, ProgramState.ENDOLD, new Color(255, 130, 141), DiffRow.Tag.INSERT);
+                        rightInlineBegin = addDiffLine(right, rendered.rightHighlights, rendered.rightOverlayHighlights,
+                                line.getNewLine(), line.getTag(), rightInlineBegin,
+                                ProgramState.BEGINNEW, ProgramState.ENDNEW, new Color(110, 255, 118), DiffRow.Tag.DELETE);
+                    }
+                }
+
+                if (LazySyntaxHighlighter.isJava(file)) {
+                    rendered.leftSyntaxRegions.add(new LazySyntaxHighlighter.Region(leftLinesStart, left.length(), delta));
+                    rendered.rightSyntaxRegions.add(new LazySyntaxHighlighter.Region(rightLinesStart, right.length(), delta));
+                }
+
+                rendered.leftHunkPositions.add(new ProgramState.HunkPos(leftHunkStart, left.length(), currentFile));
+                rendered.rightHunkPositions.add(new ProgramState.HunkPos(rightHunkStart, right.length(), currentFile));
+            }
+            currentFile++;
+        }
+        rendered.leftDocument = LazySyntaxHighlighter.createDocument(left.toString());
+        rendered.rightDocument = LazySyntaxHighlighter.createDocument(right.toString());
+        return rendered;
+    }
+
     private static int addDiffLine(StringBuilder output, List<Highlight> highlights, List<Highlight> overlayHighlights, // outputs
                                    String line, DiffRow.Tag tag, int inlineBegin, // inputs
                                    String beginInline, String endInline, Color color, DiffRow.Tag emptyTag) { // parameters
@@ -363,11 +515,12 @@ public class DiffSorter {
     }
 
     private void createUIComponents() {
-        DefaultSyntaxKit.initKit();
         leftEditorPane = createSyntaxPane(true);
         rightEditorPane = createSyntaxPane(false);
         leftScrollBar = new JScrollPane();
         rightScrollBar = new JScrollPane();
+        leftSyntaxHighlighter = new LazySyntaxHighlighter(leftEditorPane, leftScrollBar, true);
+        rightSyntaxHighlighter = new LazySyntaxHighlighter(rightEditorPane, rightScrollBar, false);
         rightScrollBar.getVerticalScrollBar().setModel(leftScrollBar.getVerticalScrollBar().getModel());
     }
 
@@ -376,13 +529,9 @@ public class DiffSorter {
 
     private JEditorPane createSyntaxPane(boolean left) {
         JEditorPane syntaxPane = new JEditorPane();
-        syntaxPane.setEditorKit(new JavaSyntaxKit());
-        SyntaxDocument doc = (SyntaxDocument) syntaxPane.getDocument();
-        doc.setContainer(syntaxPane);
-        doc.setLarge(true);
+        syntaxPane.setEditorKit(new StyledEditorKit());
+        syntaxPane.setDocument(LazySyntaxHighlighter.createDocument(""));
         syntaxPane.setEditable(false);
-        syntaxPane.setContentType("text/java");
-        syntaxPane.setFont(syntaxPane.getFont().deriveFont(16f));
         syntaxPane.setCaret(new DefaultCaret() {
             {
                 setUpdatePolicy(DefaultCaret.NEVER_UPDATE);
@@ -419,9 +568,12 @@ public class DiffSorter {
             if (hunk == -1) {
                 int file;
                 for (file = filePositions.size() - 1; file >= 0; file--) {
-                    if (filePositions.get(file) <= e.getDot())
+                    int pos = filePositions.get(file);
+                    if (pos != -1 && pos <= e.getDot())
                         break;
                 }
+                if (file == -1)
+                    return;
                 ProgramState.selectedFile = file;
                 ProgramState.selectedHunk = -1;
             } else {
@@ -434,7 +586,7 @@ public class DiffSorter {
         return syntaxPane;
     }
 
-    private void updateSelections(JFrame frame) {
+    void updateSelections(JFrame frame) {
         leftHighlightRef = updateSelection0(leftHighlightRef, leftEditorPane, ProgramState.leftDiffFilePositions, ProgramState.leftDiffHunkPositions);
         rightHighlightRef = updateSelection0(rightHighlightRef, rightEditorPane, ProgramState.rightDiffFilePositions, ProgramState.rightDiffHunkPositions);
 
@@ -445,61 +597,44 @@ public class DiffSorter {
 
         Map<String, Integer> words = new HashMap<>();
         ProgramState.extractWords(ProgramState.currentCategory, ProgramState.selectedFile, ProgramState.selectedHunk, words);
-        Map<String, Float> probabilities = new HashMap<>();
-        for (String category : ProgramState.categories.keySet()) {
-            if (!category.equalsIgnoreCase(ProgramState.currentCategory))
-                probabilities.put(category, ProgramState.fitsInCategory(words, category));
-        }
+        Map<String, Float> probabilities = ProgramState.categoryProbabilities(words);
 
         List<String> categories = ProgramState.categories.keySet().stream()
                 .filter(ctgy -> !ctgy.equalsIgnoreCase(ProgramState.currentCategory))
                 .sorted(Comparator.<String, Float>comparing(probabilities::get).reversed())
                 .collect(Collectors.toList());
 
+        List<AbstractDelta<String>> cluster = ProgramState.selectedHunk == -1 ? null : ProgramState.clusters.get(selectedDelta());
+        JCheckBox moveCluster = cluster != null && cluster.size() > 1 ? new JCheckBox(String.format("All %d similar hunks", cluster.size())) : null;
+        if (moveCluster != null)
+            addToPanel.add(moveCluster);
+        Set<AbstractDelta<String>> matches = ProgramState.searchMatches;
+        JCheckBox moveMatches = matches != null && !matches.isEmpty() ? new JCheckBox(String.format("All %d matching hunks", matches.size())) : null;
+        if (moveMatches != null)
+            addToPanel.add(moveMatches);
+
         for (String category : categories) {
             JButton button = new JButton(String.format("%s (%.2f%%)", category, Float.isFinite(probabilities.get(category)) ? probabilities.get(category) * 100 : 0));
             button.addActionListener(e -> {
                 UnifiedDiff thisCategory = ProgramState.categories.get(ProgramState.currentCategory);
-                UnifiedDiff newCategory = ProgramState.categories.get(category);
-                if (ProgramState.selectedHunk == -1) {
-                    UnifiedDiffFile file = thisCategory.getFiles().remove(ProgramState.selectedFile);
-                    UnifiedDiffFile newFile = null;
-                    for (UnifiedDiffFile f : newCategory.getFiles()) {
-                        if (Objects.equals(f.getDiffCommand(), file.getDiffCommand()) && Objects.equals(f.getFromFile(), file.getFromFile()) && Objects.equals(f.getToFile(), file.getToFile())) {
-                            newFile = f;
-                            break;
-                        }
-                    }
-                    if (newFile == null)
-                        newCategory.getFiles().add(file);
-                    else {
-                        for (AbstractDelta<String> delta : file.getPatch().getDeltas())
-                            newFile.getPatch().addDelta(delta);
+                if (moveMatches != null && moveMatches.isSelected()) {
+                    ProgramState.moveHunks(matches, category);
+                } else if (ProgramState.selectedHunk == -1) {
+                    UnifiedDiffFile file = thisCategory.getFiles().get(ProgramState.selectedFile);
+                    if (matches == null) {
+                        ProgramState.moveFile(file, category);
+                    } else {
+                        // only the hunks of the file which are shown
+                        ProgramState.moveHunks(file.getPatch().getDeltas().stream().filter(matches::contains).collect(Collectors.toList()), category);
                     }
+                } else if (moveCluster != null && moveCluster.isSelected()) {
+                    ProgramState.moveHunks(cluster, category);
                 } else {
                     int hunksSoFar = 0;
                     for (int i = 0; i < ProgramState.selectedFile; i++)
                         hunksSoFar += thisCategory.getFiles().get(i).getPatch().getDeltas().size();
                     UnifiedDiffFile file = thisCategory.getFiles().get(ProgramState.selectedFile);
-                    AbstractDelta<String> delta = file.getPatch().getDeltas().remove(ProgramState.selectedHunk - hunksSoFar);
-                    if (file.getPatch().getDeltas().isEmpty())
-                        thisCategory.getFiles().remove(ProgramState.selectedFile);
-                    UnifiedDiffFile newFile = null;
-                    for (UnifiedDiffFile f : newCategory.getFiles()) {
-                        if (Objects.equals(f.getDiffCommand(), file.getDiffCommand()) && Objects.equals(f.getFromFile(), file.getFromFile()) && Objects.equals(f.getToFile(), file.getToFile())) {
-                            newFile = f;
-                            break;
-                        }
-                    }
-                    if (newFile == null) {
-                        newFile = new UnifiedDiffFile();
-                        newFile.setDiffCommand(file.getDiffCommand());
-                        newFile.setFromFile(file.getFromFile());
-                        newFile.setToFile(file.getToFile());
-                        newFile.setIndex(file.getIndex());
-                        newCategory.getFiles().add(newFile);
-                    }
-                    newFile.getPatch().addDelta(delta);
+                    ProgramState.moveHunk(file, file.getPatch().getDeltas().get(ProgramState.selectedHunk - hunksSoFar), category);
                 }
 
                 refresh(frame);
@@ -510,6 +645,16 @@ public class DiffSorter {
         addToPanel.revalidate();
     }
 
+    private static AbstractDelta<String> selectedDelta() {
+        UnifiedDiff diff = ProgramState.categories.get(ProgramState.currentCategory);
+        int hunksSoFar = 0;
+        for (int i = 0; i < ProgramState.selectedFile; i++)
+            hunksSoFar += diff.getFiles().get(i).getPatch().getDeltas().size();
+        List<AbstractDelta<String>> deltas = diff.getFiles().get(ProgramState.selectedFile).getPatch().getDeltas();
+        int hunk = ProgramState.selectedHunk - hunksSoFar;
+        return hunk >= 0 && hunk < deltas.size() ? deltas.get(hunk) : null;
+    }
+
     private Object updateSelection0(Object highlightRef, JEditorPane editorPane,
                                     List<Integer> filePositions, List<ProgramState.HunkPos> hunkPositions) {
         if (highlightRef != null)
@@ -521,10 +666,18 @@ public class DiffSorter {
             highlightEnd = pos.end;
         } else if (ProgramState.selectedFile < filePositions.size()) {
             highlightStart = filePositions.get(ProgramState.selectedFile);
-            highlightEnd = ProgramState.selectedFile == filePositions.size() - 1 ? editorPane.getText().length() : filePositions.get(ProgramState.selectedFile + 1);
+            highlightEnd = editorPane.getDocument().getLength();
+            for (int file = ProgramState.selectedFile + 1; file < filePositions.size(); file++) {
+                if (filePositions.get(file) != -1) {
+                    highlightEnd = filePositions.get(file);
+                    break;
+                }
+            }
         } else {
             highlightStart = highlightEnd = 0;
         }
+        if (highlightStart == -1)
+            highlightStart = highlightEnd = 0;
         try {
             return editorPane.getHighlighter().addHighlight(highlightStart, highlightEnd, new DefaultHighlighter.DefaultHighlightPainter(Color.YELLOW));
         } catch (BadLocationException e) {
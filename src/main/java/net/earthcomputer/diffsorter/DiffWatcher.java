@@ -0,0 +1,255 @@
+package net.earthcomputer.diffsorter;
+
+import com.github.difflib.patch.AbstractDelta;
+import com.github.difflib.unifieddiff.UnifiedDiff;
+import com.github.difflib.unifieddiff.UnifiedDiffFile;
+
+import javax.swing.*;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the project directory for .diff files which were changed by something else, and reloads just those
+ * categories in the background, keeping the caches and model statistics of the other categories.
+ */
+public class DiffWatcher {
+
+    // wait for writes to settle before reloading
+    private static final long SETTLE_MILLIS = 500;
+
+    private static WatchService watchService;
+    private static Thread thread;
+    private static boolean saving;
+    // the size and modification time of each .diff file when it was last loaded or saved
+    private static final Map<String, List<Long>> stamps = new HashMap<>();
+
+    public static synchronized void watch(File directory) throws IOException {
+        stop();
+        recordStamps(directory);
+        WatchService service = directory.toPath().getFileSystem().newWatchService();
+        directory.toPath().register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        watchService = service;
+        thread = new Thread(() -> run(service, directory), "Diff watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public static synchronized void stop() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            watchService = null;
+            thread = null;
+        }
+    }
+
+    // Our own saves shouldn't be reloaded
+    public static synchronized void beginSave() {
+        saving = true;
+    }
+
+    public static synchronized void endSave(File directory) {
+        saving = false;
+        if (watchService != null)
+            recordStamps(directory);
+    }
+
+    private static synchronized void recordStamps(File directory) {
+        stamps.clear();
+        File[] subFiles = directory.listFiles();
+        if (subFiles != null) {
+            for (File file : subFiles) {
+                if (file.getName().endsWith(".diff"))
+                    stamps.put(file.getName(), stamp(file));
+            }
+        }
+    }
+
+    private static List<Long> stamp(File file) {
+        return file.exists() ? Arrays.asList(file.length(), file.lastModified()) : null;
+    }
+
+    // Returns whether the file is different to when it was last loaded or saved, and remembers its new state
+    private static synchronized boolean checkChanged(File file) {
+        if (saving)
+            return false;
+        List<Long> stamp = stamp(file);
+        return !Objects.equals(stamp == null ? stamps.remove(file.getName()) : stamps.put(file.getName(), stamp), stamp);
+    }
+
+    private static void run(WatchService service, File directory) {
+        try {
+            while (true) {
+                WatchKey key = service.take();
+                Set<String> changed = new LinkedHashSet<>();
+                do {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.context() instanceof Path) {
+                            String name = event.context().toString();
+                            if (name.endsWith(".diff"))
+                                changed.add(name);
+                        }
+                    }
+                    key.reset();
+                } while ((key = service.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null);
+
+                for (String name : changed) {
+                    File file = new File(directory, name);
+                    if (checkChanged(file))
+                        reload(directory, file);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ignore) {
+            // stopped
+        }
+    }
+
+    private static void reload(File directory, File file) {
+        String category = categoryName(file);
+        Map<String, UnifiedDiff> categoriesAtStart = ProgramState.categories;
+
+        UnifiedDiff diff = null;
+        IdentityHashMap<AbstractDelta<String>, DiffIndex.Range> hunkRanges = new IdentityHashMap<>();
+        IdentityHashMap<UnifiedDiffFile, DiffIndex.Range> fileHeaderRanges = new IdentityHashMap<>();
+        if (file.exists()) {
+            try {
+                diff = DiffIndex.index(file, ProgramState.streaming, hunkRanges, fileHeaderRanges);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+        }
+        UnifiedDiff newDiff = diff;
+
+        SwingUtilities.invokeLater(() -> {
+            // another project was opened in the meantime
+            if (ProgramState.categories != categoriesAtStart || !directory.equals(ProgramState.saveDir))
+                return;
+            merge(directory, file, category, newDiff, hunkRanges, fileHeaderRanges);
+        });
+    }
+
+    // Reloads the file on the calling thread without asking about unsaved changes, for tests
+    static void reloadNow(File directory, File file) throws IOException {
+        IdentityHashMap<AbstractDelta<String>, DiffIndex.Range> hunkRanges = new IdentityHashMap<>();
+        IdentityHashMap<UnifiedDiffFile, DiffIndex.Range> fileHeaderRanges = new IdentityHashMap<>();
+        UnifiedDiff diff = file.exists() ? DiffIndex.index(file, ProgramState.streaming, hunkRanges, fileHeaderRanges) : null;
+        String category = categoryName(file);
+        if (diff != null || (ProgramState.categories.containsKey(category) && !"unsorted".equalsIgnoreCase(category)))
+            replace(directory, file, category, diff, hunkRanges, fileHeaderRanges);
+    }
+
+    private static String categoryName(File file) {
+        return file.getName().substring(0, file.getName().length() - 5);
+    }
+
+    private static void merge(File directory, File file, String category, UnifiedDiff diff,
+                              Map<AbstractDelta<String>, DiffIndex.Range> hunkRanges,
+                              Map<UnifiedDiffFile, DiffIndex.Range> fileHeaderRanges) {
+        if (diff == null && (!ProgramState.categories.containsKey(category) || "unsorted".equalsIgnoreCase(category)))
+            return;
+        if (ProgramState.dirtyCategories.contains(category)) {
+            if (JOptionPane.showConfirmDialog(ProgramState.frame,
+                    String.format("%s has changed on disk.\nReload it and lose the unsaved changes to this category?", file.getName()),
+                    "File changed",
+                    JOptionPane.YES_NO_OPTION,
+                    JOptionPane.WARNING_MESSAGE) != JOptionPane.YES_OPTION)
+                return;
+        }
+        replace(directory, file, category, diff, hunkRanges, fileHeaderRanges);
+    }
+
+    private static void replace(File directory, File file, String category, UnifiedDiff diff,
+                                Map<AbstractDelta<String>, DiffIndex.Range> hunkRanges,
+                                Map<UnifiedDiffFile, DiffIndex.Range> fileHeaderRanges) {
+        UnifiedDiff oldDiff = ProgramState.categories.get(category);
+        Set<AbstractDelta<String>> oldDeltas = Collections.newSetFromMap(new IdentityHashMap<>());
+        Set<UnifiedDiffFile> oldFiles = Collections.newSetFromMap(new IdentityHashMap<>());
+        if (oldDiff != null) {
+            oldFiles.addAll(oldDiff.getFiles());
+            for (UnifiedDiffFile oldFile : oldDiff.getFiles())
+                oldDeltas.addAll(oldFile.getPatch().getDeltas());
+        }
+
+        // hunks which were moved out of this file into other categories still refer to its old contents
+        List<AbstractDelta<String>> movedOut = new ArrayList<>();
+        ProgramState.hunkRanges.forEach((delta, range) -> {
+            if (range.isIn(file) && !oldDeltas.contains(delta))
+                movedOut.add(delta);
+        });
+        if (!movedOut.isEmpty()) {
+            if (ProgramState.streaming) {
+                // their lines aren't in memory, so the only consistent state left is what's on disk
+                JOptionPane.showMessageDialog(ProgramState.frame,
+                        String.format("%s has changed on disk, and hunks moved out of it haven't been saved.\nThe whole project will be reloaded.", file.getName()),
+                        "File changed", JOptionPane.WARNING_MESSAGE);
+                try {
+                    ProgramState.load(ProgramState.frame, directory, true);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    JOptionPane.showMessageDialog(ProgramState.frame, "An I/O error occurred", "Error", JOptionPane.ERROR_MESSAGE);
+                }
+                return;
+            }
+            // the lines are in memory, so they'll just be formatted again on save
+            for (AbstractDelta<String> delta : movedOut)
+                ProgramState.hunkRanges.remove(delta);
+        }
+        // the headers of files moved out of it, including files without hunks such as "Only in" lines, are formatted
+        // again from their parsed fields in either mode
+        ProgramState.fileHeaderRanges.entrySet().removeIf(entry -> entry.getValue().isIn(file) && !oldFiles.contains(entry.getKey()));
+
+        if (oldDiff != null) {
+            for (UnifiedDiffFile oldFile : oldDiff.getFiles()) {
+                ProgramState.fileHeaderRanges.remove(oldFile);
+                for (AbstractDelta<String> delta : oldFile.getPatch().getDeltas()) {
+                    ProgramState.hunkRanges.remove(delta);
+                    ProgramState.diffRowCache.remove(delta);
+                    ProgramState.syntaxCache.remove(delta);
+                    ProgramState.clusters.remove(delta);
+                    SearchIndex.remove(delta);
+                }
+            }
+        }
+        List<AbstractDelta<String>> newDeltas = new ArrayList<>();
+        if (diff == null) {
+            ProgramState.categories.remove(category);
+        } else {
+            ProgramState.categories.put(category, diff);
+            ProgramState.hunkRanges.putAll(hunkRanges);
+            ProgramState.fileHeaderRanges.putAll(fileHeaderRanges);
+            for (UnifiedDiffFile newFile : diff.getFiles()) {
+                for (AbstractDelta<String> delta : newFile.getPatch().getDeltas()) {
+                    SearchIndex.add(delta, category);
+                    newDeltas.add(delta);
+                }
+            }
+        }
+        boolean retrain = ProgramState.categoryReloaded(category, oldDeltas, newDeltas);
+        ProgramState.dirtyCategories.remove(category);
+        if (category.equals(ProgramState.clusterCategory))
+            ProgramState.clusterCategory = null;
+
+        if (category.equals(ProgramState.currentCategory)) {
+            if (diff == null)
+                ProgramState.currentCategory = "unsorted";
+            ProgramState.selectedFile = 0;
+            ProgramState.selectedHunk = -1;
+            if (ProgramState.ui != null)
+                ProgramState.ui.refresh(ProgramState.frame);
+        } else if (ProgramState.ui != null) {
+            // the suggested categories of the hunks being sorted have changed either way
+            if (oldDiff == null || diff == null || retrain)
+                ProgramState.ui.refresh(ProgramState.frame);
+            else
+                ProgramState.ui.updateSelections(ProgramState.frame);
+        }
+    }
+
+}
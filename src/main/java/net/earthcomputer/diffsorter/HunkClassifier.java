@@ -0,0 +1,82 @@
+package net.earthcomputer.diffsorter;
+
+import java.util.*;
+
+/**
+ * Suggests which category a hunk belongs in, based on the word counts of its lines.
+ * The category currently being sorted is never part of the training data.
+ */
+public interface HunkClassifier {
+
+    String getName();
+
+    /**
+     * Trains the classifier from scratch on the given examples, keyed by category
+     */
+    void train(Map<String, List<Map<String, Integer>>> examples);
+
+    /**
+     * Trains the classifier from scratch on the given examples, keyed by category, which may only be created as they're
+     * iterated. By default they are all collected and passed to {@link #train}.
+     */
+    default void trainStreamed(Map<String, ? extends Iterable<Map<String, Integer>>> examples) {
+        Map<String, List<Map<String, Integer>>> lists = new HashMap<>();
+        examples.entrySet().parallelStream().forEach(category -> {
+            List<Map<String, Integer>> list = new ArrayList<>();
+            category.getValue().forEach(list::add);
+            synchronized (lists) {
+                lists.put(category.getKey(), list);
+            }
+        });
+        train(lists);
+    }
+
+    /**
+     * Whether {@link #trainStreamed} only keeps totals over the examples rather than the examples themselves, so it
+     * can be trained on every hunk no matter how many there are
+     */
+    default boolean isTrainedOnTotals() {
+        return false;
+    }
+
+    /**
+     * Updates the classifier after a hunk was moved between categories. Either category may be one the classifier
+     * wasn't trained on (e.g. the category being sorted), in which case that side is ignored.
+     *
+     * @return false if the classifier can't be updated incrementally and needs to be retrained
+     */
+    boolean update(Map<String, Integer> words, String fromCategory, String toCategory);
+
+    /**
+     * Whether {@link #update} can move hunks between the categories the classifier was trained on, rather than only
+     * between categories it ignores
+     */
+    default boolean isUpdatedIncrementally() {
+        return false;
+    }
+
+    /**
+     * The categories this classifier was trained on
+     */
+    Set<String> getCategories();
+
+    /**
+     * Returns the probability that the given set of words fits in the given category
+     */
+    float score(Map<String, Integer> words, String category);
+
+    default Map<String, Float> scoreAll(Map<String, Integer> words) {
+        Map<String, Float> scores = new HashMap<>();
+        for (String category : getCategories())
+            scores.put(category, score(words, category));
+        return scores;
+    }
+
+    default List<Map<String, Float>> scoreBatch(List<Map<String, Integer>> examples) {
+        List<Map<String, Float>> scores = new ArrayList<>(examples.size());
+        for (Map<String, Integer> example : examples)
+            scores.add(scoreAll(example));
+        return scores;
+    }
+
+}
@@ -0,0 +1,135 @@
+package net.earthcomputer.diffsorter;
+
+import com.github.difflib.patch.AbstractDelta;
+import com.github.difflib.unifieddiff.UnifiedDiff;
+import com.github.difflib.unifieddiff.UnifiedDiffFile;
+
+import javax.swing.*;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Groups near-duplicate hunks, such as the same rename applied in many files, so they can be moved at once.
+ * Each hunk gets a MinHash signature of its words, and locality sensitive hashing over bands of the signatures finds
+ * candidate pairs without comparing every pair of hunks.
+ */
+public class HunkClusterer {
+
+    private static final int BANDS = 16;
+    private static final int ROWS = 4;
+    private static final int SIGNATURE_SIZE = BANDS * ROWS;
+    // the minimum estimated Jaccard similarity of the words of two hunks in the same cluster
+    private static final float SIMILARITY_THRESHOLD = 0.8f;
+
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "Hunk clusterer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Clusters the hunks of the given category on a background thread, then stores the clusters in ProgramState
+    public static void clusterInBackground(String category) {
+        UnifiedDiff diff = ProgramState.categories.get(category);
+        if (diff == null)
+            return;
+        List<AbstractDelta<String>> deltas = new ArrayList<>();
+        for (UnifiedDiffFile file : diff.getFiles())
+            deltas.addAll(file.getPatch().getDeltas());
+        ProgramState.clusterCategory = category;
+
+        EXECUTOR.submit(() -> {
+            try {
+                List<List<AbstractDelta<String>>> clusters = cluster(deltas);
+                SwingUtilities.invokeLater(() -> {
+                    if (!category.equals(ProgramState.clusterCategory))
+                        return;
+                    ProgramState.clusters.clear();
+                    for (List<AbstractDelta<String>> cluster : clusters) {
+                        for (AbstractDelta<String> delta : cluster)
+                            ProgramState.clusters.put(delta, cluster);
+                    }
+                    if (ProgramState.ui != null && category.equals(ProgramState.currentCategory))
+                        ProgramState.ui.updateSelections(ProgramState.frame);
+                });
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+        });
+    }
+
+    // Returns the clusters with more than one hunk
+    public static List<List<AbstractDelta<String>>> cluster(List<AbstractDelta<String>> deltas) {
+        int[][] signatures = deltas.parallelStream()
+                .map(delta -> signature(ProgramState.extractWords(delta).keySet()))
+                .toArray(int[][]::new);
+
+        int[] parents = new int[deltas.size()];
+        for (int i = 0; i < parents.length; i++)
+            parents[i] = i;
+
+        for (int band = 0; band < BANDS; band++) {
+            Map<Long, Integer> lastInBucket = new HashMap<>();
+            for (int i = 0; i < signatures.length; i++) {
+                if (signatures[i] == null)
+                    continue;
+                long bucket = 1;
+                for (int row = band * ROWS; row < (band + 1) * ROWS; row++)
+                    bucket = bucket * 31 + signatures[i][row];
+                // comparing with the previous hunk in the bucket, rather than all of them, keeps this linear
+                Integer previous = lastInBucket.put(bucket, i);
+                if (previous != null && similarity(signatures[previous], signatures[i]) >= SIMILARITY_THRESHOLD)
+                    union(parents, previous, i);
+            }
+        }
+
+        Map<Integer, List<AbstractDelta<String>>> clusters = new LinkedHashMap<>();
+        for (int i = 0; i < deltas.size(); i++)
+            clusters.computeIfAbsent(find(parents, i), k -> new ArrayList<>()).add(deltas.get(i));
+        return clusters.values().stream().filter(cluster -> cluster.size() > 1).collect(Collectors.toList());
+    }
+
+    private static int[] signature(Set<String> words) {
+        if (words.isEmpty())
+            return null;
+        int[] signature = new int[SIGNATURE_SIZE];
+        Arrays.fill(signature, Integer.MAX_VALUE);
+        for (String word : words) {
+            int hash = word.hashCode();
+            for (int i = 0; i < SIGNATURE_SIZE; i++)
+                signature[i] = Math.min(signature[i], mix(hash, i));
+        }
+        return signature;
+    }
+
+    // the murmur3 finalizer, seeded with the index of the hash function
+    private static int mix(int hash, int seed) {
+        hash ^= seed * 0x9e3779b9;
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+
+    private static float similarity(int[] signatureA, int[] signatureB) {
+        long matches = IntStream.range(0, SIGNATURE_SIZE).filter(i -> signatureA[i] == signatureB[i]).count();
+        return (float) matches / SIGNATURE_SIZE;
+    }
+
+    private static int find(int[] parents, int i) {
+        while (parents[i] != i) {
+            parents[i] = parents[parents[i]];
+            i = parents[i];
+        }
+        return i;
+    }
+
+    private static void union(int[] parents, int a, int b) {
+        parents[find(parents, a)] = find(parents, b);
+    }
+
+}
@@ -0,0 +1,155 @@
+package net.earthcomputer.diffsorter;
+
+import com.github.difflib.patch.AbstractDelta;
+import com.github.difflib.unifieddiff.UnifiedDiffFile;
+import de.sciss.syntaxpane.SyntaxStyle;
+import de.sciss.syntaxpane.SyntaxStyles;
+import de.sciss.syntaxpane.Token;
+import de.sciss.syntaxpane.TokenType;
+import de.sciss.syntaxpane.lexers.JavaLexer;
+
+import javax.swing.*;
+import javax.swing.text.*;
+import java.awt.*;
+import java.lang.reflect.InvocationTargetException;
+import java.util.*;
+import java.util.List;
+
+/**
+ * Java syntax highlighting for an editor pane which only lexes the hunks that have scrolled into view. Tokens are
+ * cached per hunk while its category is shown, so a hunk is only lexed once however often it's scrolled past.
+ */
+public class LazySyntaxHighlighter {
+
+    private static final Map<TokenType, AttributeSet> STYLES = new EnumMap<>(TokenType.class);
+
+    private final JEditorPane pane;
+    private final boolean left;
+    private List<Region> regions = Collections.emptyList();
+    private BitSet highlighted = new BitSet();
+
+    public LazySyntaxHighlighter(JEditorPane pane, JScrollPane scrollPane, boolean left) {
+        this.pane = pane;
+        this.left = left;
+        scrollPane.getViewport().addChangeListener(e -> highlightVisible());
+    }
+
+    public static DefaultStyledDocument createDocument(String text) {
+        DefaultStyledDocument doc = new DefaultStyledDocument();
+        Style style = doc.getStyle(StyleContext.DEFAULT_STYLE);
+        StyleConstants.setFontFamily(style, Font.MONOSPACED);
+        StyleConstants.setFontSize(style, 16);
+        try {
+            doc.insertString(0, text, null);
+        } catch (BadLocationException e) {
+            throw new AssertionError(e);
+        }
+        return doc;
+    }
+
+    public static boolean isJava(UnifiedDiffFile file) {
+        return (file.getToFile() != null && file.getToFile().trim().endsWith(".java"))
+                || (file.getFromFile() != null && file.getFromFile().trim().endsWith(".java"));
+    }
+
+    // The regions are the lines of the Java hunks in the document, in order
+    public void setDocument(StyledDocument doc, List<Region> regions) {
+        Runnable setDocument = () -> {
+            this.regions = regions;
+            this.highlighted = new BitSet(regions.size());
+            pane.setDocument(doc);
+            // the view hasn't been laid out for the new document yet
+            SwingUtilities.invokeLater(this::highlightVisible);
+        };
+        if (SwingUtilities.isEventDispatchThread()) {
+            setDocument.run();
+        } else {
+            try {
+                SwingUtilities.invokeAndWait(setDocument);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (InvocationTargetException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    private void highlightVisible() {
+        if (regions.isEmpty() || !(pane.getDocument() instanceof StyledDocument))
+            return;
+        StyledDocument doc = (StyledDocument) pane.getDocument();
+        Rectangle visible = pane.getVisibleRect();
+        int start = pane.viewToModel(new Point(0, visible.y));
+        int end = pane.viewToModel(new Point(visible.width, visible.y + visible.height));
+
+        // find the first region which ends after the start of the visible area
+        int low = 0, high = regions.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (regions.get(mid).end <= start)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+
+        for (int i = low; i < regions.size() && regions.get(i).start <= end; i++) {
+            if (highlighted.get(i))
+                continue;
+            highlighted.set(i);
+            Region region = regions.get(i);
+            int[] tokens = getTokens(doc, region);
+            for (int j = 0; j < tokens.length; j += 3)
+                doc.setCharacterAttributes(region.start + tokens[j], tokens[j + 1], getStyle(TokenType.values()[tokens[j + 2]]), false);
+        }
+    }
+
+    // Returns the tokens of the region as (start, length, type) triples
+    private int[] getTokens(StyledDocument doc, Region region) {
+        int[][] cached = ProgramState.syntaxCache.computeIfAbsent(region.delta, k -> new int[2][]);
+        int side = left ? 0 : 1;
+        if (cached[side] == null) {
+            Segment text = new Segment();
+            try {
+                doc.getText(region.start, region.end - region.start, text);
+            } catch (BadLocationException e) {
+                e.printStackTrace();
+                return new int[0];
+            }
+            List<Token> tokens = new ArrayList<>();
+            new JavaLexer().parse(text, 0, tokens);
+            int[] result = new int[tokens.size() * 3];
+            for (int i = 0; i < tokens.size(); i++) {
+                Token token = tokens.get(i);
+                result[i * 3] = token.start;
+                result[i * 3 + 1] = token.length;
+                result[i * 3 + 2] = token.type.ordinal();
+            }
+            cached[side] = result;
+        }
+        return cached[side];
+    }
+
+    private static AttributeSet getStyle(TokenType type) {
+        return STYLES.computeIfAbsent(type, k -> {
+            SyntaxStyle style = SyntaxStyles.getInstance().getStyle(type);
+            SimpleAttributeSet attributes = new SimpleAttributeSet();
+            StyleConstants.setForeground(attributes, style.getColor());
+            StyleConstants.setBold(attributes, (style.getFontStyle() & Font.BOLD) != 0);
+            StyleConstants.setItalic(attributes, (style.getFontStyle() & Font.ITALIC) != 0);
+            return attributes;
+        });
+    }
+
+    public static class Region {
+        public final int start;
+        public final int end;
+        public final AbstractDelta<String> delta;
+
+        public Region(int start, int end, AbstractDelta<String> delta) {
+            this.start = start;
+            this.end = end;
+            this.delta = delta;
+        }
+    }
+
+}
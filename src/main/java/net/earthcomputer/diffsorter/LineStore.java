@@ -0,0 +1,142 @@
+package net.earthcomputer.diffsorter;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * The lines of the hunks in one .diff file, kept once each as UTF-8 in large shared byte arrays rather than as a
+ * separate string per line. Identical lines, such as the context lines shared by the source and target of a hunk, are
+ * only stored once. A store is filled while its file is indexed and is read-only after {@link #freeze()}, so it can be
+ * read from any thread without locking.
+ */
+public class LineStore {
+
+    private static final int CHUNK_SIZE = 1 << 16;
+
+    private final List<byte[]> chunks = new ArrayList<>();
+    // the chunk lines are currently being added to
+    private int chunk = -1;
+    private int chunkPos;
+    // the chunk index in the high 32 bits and the offset into it in the low 32 bits, indexed by line id
+    private long[] locations = new long[1024];
+    private int[] lengths = new int[1024];
+    private int size;
+    // open addressing table of line id + 1, for finding duplicate lines while the file is indexed
+    private int[] table = new int[2048];
+    private int[] hashes = new int[1024];
+
+    // Returns a read-only view of the given lines, backed by this store
+    public List<String> store(List<String> lines) {
+        int[] ids = new int[lines.size()];
+        int i = 0;
+        for (String line : lines)
+            ids[i++] = add(line.getBytes(StandardCharsets.UTF_8));
+        return new Lines(this, ids);
+    }
+
+    // Trims the store to size and drops the table used to find duplicates, after which no more lines can be added
+    public void freeze() {
+        locations = Arrays.copyOf(locations, size);
+        lengths = Arrays.copyOf(lengths, size);
+        table = null;
+        hashes = null;
+        if (chunk != -1)
+            chunks.set(chunk, Arrays.copyOf(chunks.get(chunk), chunkPos));
+    }
+
+    private int add(byte[] bytes) {
+        int hash = Arrays.hashCode(bytes);
+        int mask = table.length - 1;
+        int slot = mix(hash) & mask;
+        for (; table[slot] != 0; slot = (slot + 1) & mask) {
+            int id = table[slot] - 1;
+            if (hashes[id] == hash && equals(id, bytes))
+                return id;
+        }
+
+        if (size == locations.length) {
+            locations = Arrays.copyOf(locations, size * 2);
+            lengths = Arrays.copyOf(lengths, size * 2);
+            hashes = Arrays.copyOf(hashes, size * 2);
+        }
+        int id = size++;
+        if (bytes.length > CHUNK_SIZE) {
+            // long lines get a chunk to themselves
+            chunks.add(bytes);
+            locations[id] = (long) (chunks.size() - 1) << 32;
+        } else {
+            if (chunk == -1 || chunkPos + bytes.length > CHUNK_SIZE) {
+                chunks.add(new byte[CHUNK_SIZE]);
+                chunk = chunks.size() - 1;
+                chunkPos = 0;
+            }
+            System.arraycopy(bytes, 0, chunks.get(chunk), chunkPos, bytes.length);
+            locations[id] = ((long) chunk << 32) | chunkPos;
+            chunkPos += bytes.length;
+        }
+        lengths[id] = bytes.length;
+        hashes[id] = hash;
+        table[slot] = id + 1;
+        if (size * 2 > table.length)
+            rehash();
+        return id;
+    }
+
+    private void rehash() {
+        table = new int[table.length * 2];
+        int mask = table.length - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = mix(hashes[id]) & mask;
+            while (table[slot] != 0)
+                slot = (slot + 1) & mask;
+            table[slot] = id + 1;
+        }
+    }
+
+    private boolean equals(int id, byte[] bytes) {
+        if (lengths[id] != bytes.length)
+            return false;
+        byte[] chunk = chunks.get((int) (locations[id] >>> 32));
+        int offset = (int) locations[id];
+        for (int i = 0; i < bytes.length; i++) {
+            if (chunk[offset + i] != bytes[i])
+                return false;
+        }
+        return true;
+    }
+
+    private String get(int id) {
+        return new String(chunks.get((int) (locations[id] >>> 32)), (int) locations[id], lengths[id], StandardCharsets.UTF_8);
+    }
+
+    // the murmur3 finalizer, to spread out the bits of the array hash code
+    private static int mix(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+
+    private static class Lines extends AbstractList<String> implements RandomAccess {
+        private final LineStore store;
+        private final int[] ids;
+
+        Lines(LineStore store, int[] ids) {
+            this.store = store;
+            this.ids = ids;
+        }
+
+        @Override
+        public String get(int index) {
+            return store.get(ids[index]);
+        }
+
+        @Override
+        public int size() {
+            return ids.length;
+        }
+    }
+
+}
@@ -0,0 +1,231 @@
+package net.earthcomputer.diffsorter;
+
+import org.ejml.data.FMatrixRMaj;
+import org.ejml.dense.row.CommonOps_FDRM;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * One-vs-rest linear regression on the counts of the most common words
+ */
+public class LinearRegressionClassifier implements HunkClassifier {
+
+    private final List<List<String>> features = new ArrayList<>();
+    private final Map<String, FMatrixRMaj> models = new HashMap<>();
+
+    @Override
+    public String getName() {
+        return "Linear regression";
+    }
+
+    @Override
+    public void train(Map<String, List<Map<String, Integer>>> allData) {
+        features.clear();
+        models.clear();
+
+        List<String> categoryList = allData.keySet().stream().sorted().collect(Collectors.toList());
+        if (categoryList.isEmpty())
+            return;
+
+        // all examples in category order, so the rows of each category are contiguous
+        List<Map<String, Integer>> examples = categoryList.stream()
+                .flatMap(category -> allData.get(category).stream())
+                .collect(Collectors.toList());
+
+        Map<String, Integer> wordFrequency = examples.parallelStream()
+                .collect(HashMap::new,
+                        (mapA, mapB) -> mapB.forEach((word, freq) -> mapA.merge(word, freq, Integer::sum)),
+                        (mapA, mapB) -> mapB.forEach((word, freq) -> mapA.merge(word, freq, Integer::sum)));
+
+        // +1 for the category being sorted, which isn't part of the training data
+        List<String> commonWords = wordFrequency.keySet().stream()
+                .sorted(Comparator.<String, Integer>comparing(wordFrequency::get).reversed())
+                .limit(Math.min(20 * (allData.size() + 1), (int) (0.9 * examples.size())))
+                .collect(Collectors.toList());
+
+        // the count of each common word in each example, and the length of that vector
+        List<float[]> columns = commonWords.parallelStream()
+                .map(word -> {
+                    float[] column = new float[examples.size()];
+                    for (int i = 0; i < column.length; i++)
+                        column[i] = examples.get(i).getOrDefault(word, 0);
+                    return column;
+                })
+                .collect(Collectors.toCollection(ArrayList::new));
+        List<Float> lengths = columns.parallelStream()
+                .map(column -> {
+                    float length = 0;
+                    for (float val : column)
+                        length += val * val;
+                    return (float) Math.sqrt(length);
+                })
+                .collect(Collectors.toCollection(ArrayList::new));
+        int firstExample = -1;
+        List<Map<String, Integer>> firstCategory = allData.get(categoryList.get(0));
+        for (int i = 0; i < firstCategory.size(); i++) {
+            if (!firstCategory.get(i).isEmpty()) {
+                firstExample = i;
+                break;
+            }
+        }
+
+        // search for linearly dependent pairs
+        for (int wordA = 0; wordA < commonWords.size(); wordA++) {
+            float[] columnA = columns.get(wordA);
+            float firstVal = firstExample == -1 ? 0 : columnA[firstExample];
+            boolean allSameA = true;
+            for (float val : columnA) {
+                if (Math.abs(val - firstVal) > 0.001) {
+                    allSameA = false;
+                    break;
+                }
+            }
+            if (allSameA) {
+                commonWords.remove(wordA);
+                columns.remove(wordA);
+                lengths.remove(wordA--);
+                continue;
+            }
+
+            float lengthA = lengths.get(wordA);
+            int wordB = IntStream.range(0, wordA).parallel()
+                    .filter(b -> {
+                        float[] columnB = columns.get(b);
+                        float lengthB = lengths.get(b);
+                        for (int i = 0; i < columnA.length; i++) {
+                            if (Math.abs(columnA[i] / lengthA - columnB[i] / lengthB) > 0.001)
+                                return false;
+                        }
+                        return true;
+                    })
+                    .findFirst()
+                    .orElse(wordA);
+
+            if (wordB == wordA) { // no equivalent found
+                ArrayList<String> feature = new ArrayList<>(1);
+                feature.add(commonWords.get(wordA));
+                features.add(feature);
+            } else {
+                features.get(wordB).add(commonWords.remove(wordA));
+                columns.remove(wordA);
+                lengths.remove(wordA--);
+            }
+        }
+
+        if (features.isEmpty())
+            return;
+
+        int numRows = examples.size();
+        int numCols = features.size() + 1;
+        FMatrixRMaj X = new FMatrixRMaj(numRows, numCols);
+        IntStream.range(0, numRows).parallel().forEach(row -> {
+            Map<String, Integer> example = examples.get(row);
+            for (int j = 0; j < features.size(); j++) {
+                int count = 0;
+                for (String word : features.get(j))
+                    count += example.getOrDefault(word, 0);
+                X.data[row * numCols + j] = count;
+            }
+            X.data[row * numCols + features.size()] = 1;
+        });
+
+        // accumulate X^T X over blocks of rows in parallel
+        int blockSize = Math.max(256, numRows / (4 * ForkJoinPool.getCommonPoolParallelism()) + 1);
+        FMatrixRMaj XTXinv = IntStream.range(0, (numRows + blockSize - 1) / blockSize).parallel()
+                .mapToObj(block -> {
+                    int start = block * blockSize;
+                    int end = Math.min(numRows, start + blockSize);
+                    FMatrixRMaj rows = new FMatrixRMaj(end - start, numCols);
+                    System.arraycopy(X.data, start * numCols, rows.data, 0, (end - start) * numCols);
+                    FMatrixRMaj gram = new FMatrixRMaj(numCols, numCols);
+                    CommonOps_FDRM.multTransA(rows, rows, gram);
+                    return gram;
+                })
+                .reduce((gramA, gramB) -> {
+                    CommonOps_FDRM.addEquals(gramA, gramB);
+                    return gramA;
+                })
+                .orElseThrow(IllegalStateException::new);
+        CommonOps_FDRM.invert(XTXinv);
+
+        // y is 1 for the rows of the category and 0 elsewhere, so X^T y is the sum of the category's rows
+        int[] categoryStarts = new int[categoryList.size() + 1];
+        for (int i = 0; i < categoryList.size(); i++)
+            categoryStarts[i + 1] = categoryStarts[i] + allData.get(categoryList.get(i)).size();
+        IntStream.range(0, categoryList.size()).parallel().forEach(category -> {
+            FMatrixRMaj XTy = new FMatrixRMaj(numCols, 1);
+            for (int row = categoryStarts[category]; row < categoryStarts[category + 1]; row++) {
+                for (int j = 0; j < numCols; j++)
+                    XTy.data[j] += X.data[row * numCols + j];
+            }
+            FMatrixRMaj beta = new FMatrixRMaj(numCols, 1);
+            CommonOps_FDRM.mult(XTXinv, XTy, beta);
+            synchronized (models) {
+                models.put(categoryList.get(category), beta);
+            }
+        });
+    }
+
+    @Override
+    public boolean update(Map<String, Integer> words, String fromCategory, String toCategory) {
+        // the normal equations have to be solved again from scratch
+        return !models.containsKey(fromCategory) && !models.containsKey(toCategory);
+    }
+
+    @Override
+    public Set<String> getCategories() {
+        return models.keySet();
+    }
+
+    @Override
+    public float score(Map<String, Integer> words, String category) {
+        FMatrixRMaj model = models.get(category);
+        if (model == null)
+            return 0.5f;
+
+        FMatrixRMaj result = new FMatrixRMaj(1, 1);
+        CommonOps_FDRM.multTransA(model, toFeatureVector(words), result);
+        return toProbability(result.get(0, 0));
+    }
+
+    @Override
+    public List<Map<String, Float>> scoreBatch(List<Map<String, Integer>> examples) {
+        List<Map<String, Float>> scores = new ArrayList<>(examples.size());
+        for (int i = 0; i < examples.size(); i++)
+            scores.add(new HashMap<>());
+        if (examples.isEmpty() || models.isEmpty())
+            return scores;
+
+        FMatrixRMaj X = new FMatrixRMaj(examples.size(), features.size() + 1);
+        IntStream.range(0, examples.size()).parallel().forEach(i -> {
+            FMatrixRMaj x = toFeatureVector(examples.get(i));
+            System.arraycopy(x.data, 0, X.data, i * X.numCols, X.numCols);
+        });
+        FMatrixRMaj y = new FMatrixRMaj(examples.size(), 1);
+        for (Map.Entry<String, FMatrixRMaj> model : models.entrySet()) {
+            CommonOps_FDRM.mult(X, model.getValue(), y);
+            for (int i = 0; i < examples.size(); i++)
+                scores.get(i).put(model.getKey(), toProbability(y.data[i]));
+        }
+        return scores;
+    }
+
+    private FMatrixRMaj toFeatureVector(Map<String, Integer> words) {
+        FMatrixRMaj x = new FMatrixRMaj(features.size() + 1, 1);
+        for (int i = 0; i < features.size(); i++) {
+            int count = features.get(i).stream().mapToInt(word -> words.getOrDefault(word, 0)).sum();
+            x.set(i, 0, count);
+        }
+        x.set(features.size(), 0, 1);
+        return x;
+    }
+
+    private static float toProbability(float y) {
+        if (!Float.isFinite(y)) y = 0;
+        return (y / (1 + Math.abs(y)) + 1) * 0.5f;
+    }
+
+}
@@ -0,0 +1,113 @@
+package net.earthcomputer.diffsorter;
+
+import com.github.difflib.unifieddiff.UnifiedDiff;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * Measures the heap retained by a project after loading it, and after rendering the first window of the largest
+ * categories in the way the current category and the prefetched categories are kept while sorting. Since at most
+ * {@link ProgramState#WINDOW_HUNKS} hunks of each are rendered, the second figure doesn't grow with the size of the
+ * categories. Uses the same synthetic project as {@link ClassifierBenchmark} if no project directory is given.
+ */
+public class MemoryBenchmark {
+
+    private static final long SEED = 0x5eed;
+
+    public static void main(String[] args) throws IOException {
+        File directory = null;
+        boolean streaming = false;
+        int views = 4;
+        int syntheticCategories = 10;
+        int syntheticHunks = 5000;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--streaming":
+                    streaming = true;
+                    break;
+                case "--views":
+                    views = Integer.parseInt(args[++i]);
+                    break;
+                case "--synthetic":
+                    syntheticCategories = Integer.parseInt(args[++i]);
+                    syntheticHunks = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    directory = new File(args[i]);
+                    break;
+            }
+        }
+        if (views < 1) {
+            System.err.println("Usage: MemoryBenchmark [--streaming] [--views <n>] [--synthetic <categories> <hunks per category>] [project directory]");
+            System.exit(1);
+        }
+
+        if (directory == null) {
+            directory = Files.createTempDirectory("diffsorter-synthetic").toFile();
+            SyntheticProject.generate(directory, SEED, syntheticCategories, syntheticHunks);
+            System.out.printf("Generated synthetic project with %d categories of %d hunks in %s%n", syntheticCategories, syntheticHunks, directory);
+        }
+
+        long baseline = getHeapUsage();
+        ProgramState.load(null, directory, streaming);
+        long loaded = getHeapUsage();
+
+        int hunks = 0;
+        int lines = 0;
+        for (UnifiedDiff diff : ProgramState.categories.values()) {
+            hunks += diff.getFiles().stream().mapToInt(file -> file.getPatch().getDeltas().size()).sum();
+            lines += diff.getFiles().stream().flatMap(file -> file.getPatch().getDeltas().stream())
+                    .mapToInt(delta -> delta.getSource().size() + delta.getTarget().size()).sum();
+        }
+        System.out.printf("%d categories, %d hunks, %d lines%n", ProgramState.categories.size(), hunks, lines);
+
+        // the current category is rendered last, so the diff rows kept are its own
+        List<String> largest = new ArrayList<>(ProgramState.categories.keySet());
+        largest.sort(Comparator.comparingInt((String category) -> ProgramState.categories.get(category).getFiles().size()).reversed());
+        List<DiffSorter.RenderedCategory> rendered = new ArrayList<>();
+        long documentChars = 0;
+        for (int i = Math.min(views, largest.size()) - 1; i >= 0; i--) {
+            UnifiedDiff diff = ProgramState.categories.get(largest.get(i));
+            ProgramState.windowStart = 0;
+            DiffSorter.RenderedCategory view = DiffSorter.render(diff, 0, ProgramState.windowEnd(diff), null, null);
+            ProgramState.retainDiffRows(view.shownDeltas);
+            rendered.add(view);
+            documentChars += view.leftDocument.getLength() + view.rightDocument.getLength();
+        }
+        long withViews = getHeapUsage();
+        ProgramState.diffRowCache.clear();
+        long withoutDiffRows = getHeapUsage();
+        rendered.clear();
+        long withoutViews = getHeapUsage();
+
+        System.out.printf("%-32s %10.1f MB%n", "After loading", (loaded - baseline) / (1024.0 * 1024.0));
+        System.out.printf("%-32s %10.1f MB%n", String.format("With %d rendered categories", Math.min(views, largest.size())), (withViews - baseline) / (1024.0 * 1024.0));
+        System.out.printf("%-32s %10.1f MB%n", "  of which diff rows", (withViews - withoutDiffRows) / (1024.0 * 1024.0));
+        System.out.printf("%-32s %10.1f MB (%d chars)%n", "  of which rendered categories", (withoutDiffRows - withoutViews) / (1024.0 * 1024.0), documentChars);
+    }
+
+    // Returns the heap usage after a few GCs, since one isn't always enough to collect everything unreachable
+    private static long getHeapUsage() {
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        long usage = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP)
+                usage += pool.getUsage().getUsed();
+        }
+        return usage;
+    }
+
+}
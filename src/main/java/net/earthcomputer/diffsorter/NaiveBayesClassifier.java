@@ -0,0 +1,135 @@
+package net.earthcomputer.diffsorter;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Multinomial naive Bayes with Laplace smoothing. Training is a single pass over the word counts, and moving a hunk
+ * only touches the counts of the words in that hunk.
+ */
+public class NaiveBayesClassifier implements HunkClassifier {
+
+    private final Map<String, CategoryStats> categories = new HashMap<>();
+    // number of occurrences of each word over all categories, used to find the vocabulary size
+    private final Map<String, Integer> vocabulary = new HashMap<>();
+    private int totalHunks;
+
+    @Override
+    public String getName() {
+        return "Naive Bayes";
+    }
+
+    @Override
+    public void train(Map<String, List<Map<String, Integer>>> examples) {
+        trainStreamed(examples);
+    }
+
+    // Each example is counted and dropped straight away, and the categories are counted in parallel
+    @Override
+    public void trainStreamed(Map<String, ? extends Iterable<Map<String, Integer>>> examples) {
+        categories.clear();
+        vocabulary.clear();
+        totalHunks = 0;
+
+        Map<String, CategoryStats> stats = examples.entrySet().parallelStream()
+                .collect(Collectors.toMap(Map.Entry::getKey, category -> {
+                    CategoryStats categoryStats = new CategoryStats();
+                    for (Map<String, Integer> example : category.getValue()) {
+                        categoryStats.hunks++;
+                        example.forEach((word, count) -> {
+                            categoryStats.tokens += count;
+                            categoryStats.wordCounts.merge(word, count, Integer::sum);
+                        });
+                    }
+                    return categoryStats;
+                }));
+        categories.putAll(stats);
+        for (CategoryStats categoryStats : stats.values()) {
+            totalHunks += categoryStats.hunks;
+            categoryStats.wordCounts.forEach((word, count) -> vocabulary.merge(word, count, Integer::sum));
+        }
+    }
+
+    @Override
+    public boolean isTrainedOnTotals() {
+        return true;
+    }
+
+    @Override
+    public boolean isUpdatedIncrementally() {
+        return true;
+    }
+
+    @Override
+    public boolean update(Map<String, Integer> words, String fromCategory, String toCategory) {
+        CategoryStats from = fromCategory == null ? null : categories.get(fromCategory);
+        if (from != null)
+            add(from, words, -1);
+        CategoryStats to = toCategory == null ? null : categories.get(toCategory);
+        if (to != null)
+            add(to, words, 1);
+        return true;
+    }
+
+    private void add(CategoryStats stats, Map<String, Integer> words, int sign) {
+        stats.hunks += sign;
+        totalHunks += sign;
+        words.forEach((word, count) -> {
+            stats.tokens += sign * count;
+            stats.wordCounts.merge(word, sign * count, NaiveBayesClassifier::sumOrRemove);
+            vocabulary.merge(word, sign * count, NaiveBayesClassifier::sumOrRemove);
+        });
+    }
+
+    private static Integer sumOrRemove(Integer a, Integer b) {
+        int sum = a + b;
+        return sum <= 0 ? null : sum;
+    }
+
+    @Override
+    public Set<String> getCategories() {
+        return categories.keySet();
+    }
+
+    @Override
+    public float score(Map<String, Integer> words, String category) {
+        return scoreAll(words).getOrDefault(category, 0.5f);
+    }
+
+    @Override
+    public Map<String, Float> scoreAll(Map<String, Integer> words) {
+        Map<String, Float> scores = new HashMap<>();
+        if (categories.isEmpty())
+            return scores;
+
+        int vocabularySize = vocabulary.size() + 1; // +1 for unseen words
+        Map<String, Double> logProbabilities = new HashMap<>();
+        double maxLogProbability = Double.NEGATIVE_INFINITY;
+        for (Map.Entry<String, CategoryStats> category : categories.entrySet()) {
+            CategoryStats stats = category.getValue();
+            double logProbability = Math.log((stats.hunks + 1.0) / (totalHunks + categories.size()));
+            double logDenominator = Math.log(stats.tokens + vocabularySize);
+            for (Map.Entry<String, Integer> word : words.entrySet()) {
+                int count = stats.wordCounts.getOrDefault(word.getKey(), 0);
+                logProbability += word.getValue() * (Math.log(count + 1) - logDenominator);
+            }
+            logProbabilities.put(category.getKey(), logProbability);
+            maxLogProbability = Math.max(maxLogProbability, logProbability);
+        }
+
+        // softmax, shifted by the max to avoid underflow
+        double total = 0;
+        for (double logProbability : logProbabilities.values())
+            total += Math.exp(logProbability - maxLogProbability);
+        for (Map.Entry<String, Double> category : logProbabilities.entrySet())
+            scores.put(category.getKey(), (float) (Math.exp(category.getValue() - maxLogProbability) / total));
+        return scores;
+    }
+
+    private static class CategoryStats {
+        int hunks;
+        long tokens;
+        Map<String, Integer> wordCounts = new HashMap<>();
+    }
+
+}
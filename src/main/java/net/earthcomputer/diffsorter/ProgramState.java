@@ -5,22 +5,16 @@ import com.github.difflib.text.DiffRow;
 import com.github.difflib.text.DiffRowGenerator;
 import com.github.difflib.unifieddiff.UnifiedDiff;
 import com.github.difflib.unifieddiff.UnifiedDiffFile;
-import com.github.difflib.unifieddiff.UnifiedDiffReader;
-import com.github.difflib.unifieddiff.UnifiedDiffWriter;
-import org.ejml.data.FMatrixRMaj;
-import org.ejml.dense.row.CommonOps_FDRM;
 
 import javax.swing.*;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
 
 public class ProgramState {
 
@@ -48,62 +42,186 @@ public class ProgramState {
     public static int selectedFile;
     public static int selectedHunk = -1;
     public static Map<String, UnifiedDiff> categories = new HashMap<>();
-    public static IdentityHashMap<AbstractDelta<String>, List<DiffRow>> diffRowCache = new IdentityHashMap<>();
+    public static Map<AbstractDelta<String>, List<DiffRow>> diffRowCache = Collections.synchronizedMap(new IdentityHashMap<>());
+    // the Java tokens of the left and right side of each hunk, see LazySyntaxHighlighter
+    public static Map<AbstractDelta<String>, int[][]> syntaxCache = Collections.synchronizedMap(new IdentityHashMap<>());
+    // whether hunks are loaded on demand rather than kept in memory, for projects larger than the heap
+    public static boolean streaming;
+    // the most hunks of each category a model which keeps every example is trained on in streaming mode
+    public static final int STREAMING_TRAINING_HUNKS = 5000;
+    // the most hunks shown at once, since Swing takes time in proportion to the lines of a document to lay it out
+    public static final int WINDOW_HUNKS = 1000;
+    // the first file shown
+    public static int windowStart;
+    public static IdentityHashMap<AbstractDelta<String>, DiffIndex.Range> hunkRanges = new IdentityHashMap<>();
+    public static IdentityHashMap<UnifiedDiffFile, DiffIndex.Range> fileHeaderRanges = new IdentityHashMap<>();
+    // near-duplicate hunks in clusterCategory, mapping each hunk to the cluster it's in
+    public static IdentityHashMap<AbstractDelta<String>, List<AbstractDelta<String>>> clusters = new IdentityHashMap<>();
+    public static String clusterCategory;
+    // categories with changes which haven't been saved yet
+    public static Set<String> dirtyCategories = new HashSet<>();
+    public static String searchQuery = "";
+    // the hunks of the current category matching the search query, or null if there is no query
+    public static Set<AbstractDelta<String>> searchMatches;
+
+    public static final Map<String, Supplier<HunkClassifier>> CLASSIFIERS = new LinkedHashMap<>();
+    static {
+        CLASSIFIERS.put("Linear regression", LinearRegressionClassifier::new);
+        CLASSIFIERS.put("Naive Bayes", NaiveBayesClassifier::new);
+    }
 
-    private static List<List<String>> features = new ArrayList<>();
-    private static Map<String, FMatrixRMaj> models = new HashMap<>();
+    private static HunkClassifier classifier = new LinearRegressionClassifier();
+    private static String modelCategory;
+    private static Set<String> modelCategories = Collections.emptySet();
+    private static boolean modelStale = true;
 
     public static void load(JFrame frame, File directory) throws IOException {
-        Map<String, UnifiedDiff> diffs = new HashMap<>();
-
+        long totalSize = 0;
         File[] subFiles = directory.listFiles();
         if (subFiles != null) {
             for (File file : subFiles) {
-                if (file.getName().endsWith(".diff")) {
-                    String name = file.getName().substring(0, file.getName().length() - 5);
-                    UnifiedDiff diff = UnifiedDiffReader.parseUnifiedDiff(new FileInputStream(file));
-                    diffs.put(name, diff);
-                }
+                if (file.getName().endsWith(".diff"))
+                    totalSize += file.length();
             }
         }
+        // parsed diffs take up several times their size on disk
+        load(frame, directory, totalSize > Runtime.getRuntime().maxMemory() / 8);
+    }
+
+    public static void load(JFrame frame, File directory, boolean streaming) throws IOException {
+        IdentityHashMap<AbstractDelta<String>, DiffIndex.Range> hunkRanges = new IdentityHashMap<>();
+        IdentityHashMap<UnifiedDiffFile, DiffIndex.Range> fileHeaderRanges = new IdentityHashMap<>();
+        Map<String, UnifiedDiff> diffs = readCategories(directory, streaming, hunkRanges, fileHeaderRanges);
 
         if (!diffs.containsKey("unsorted")) {
+            if (frame == null)
+                throw new IOException("No \"unsorted.diff\" file found");
             JOptionPane.showMessageDialog(frame, "No \"unsorted.diff\" file found", "Error", JOptionPane.ERROR_MESSAGE);
             return;
         }
 
+        DiffIndex.clear();
+        SearchIndex.clear();
+        CategoryPrefetcher.clear();
+        ProgramState.streaming = streaming;
         ProgramState.categories = diffs;
+        ProgramState.hunkRanges = hunkRanges;
+        ProgramState.fileHeaderRanges = fileHeaderRanges;
         ProgramState.currentCategory = "unsorted";
+        ProgramState.windowStart = 0;
 
         diffRowCache.clear();
+        syntaxCache.clear();
+        clusters.clear();
+        clusterCategory = null;
+        dirtyCategories.clear();
+        modelStale = true;
+
+        if (ui != null) {
+            DiffWatcher.watch(directory);
+            ui.refresh(frame);
+        }
+    }
+
+    public static Map<String, UnifiedDiff> readCategories(File directory, boolean streaming,
+                                                          Map<AbstractDelta<String>, DiffIndex.Range> hunkRanges,
+                                                          Map<UnifiedDiffFile, DiffIndex.Range> fileHeaderRanges) throws IOException {
+        Map<String, UnifiedDiff> diffs = new HashMap<>();
+
+        File[] subFiles = directory.listFiles();
+        if (subFiles != null) {
+            for (File file : subFiles) {
+                if (file.getName().endsWith(".diff")) {
+                    String name = file.getName().substring(0, file.getName().length() - 5);
+                    diffs.put(name, DiffIndex.index(file, streaming, hunkRanges, fileHeaderRanges));
+                }
+            }
+        }
 
-        ui.refresh(frame);
+        return diffs;
     }
 
+    // The hunks are copied out of the old files, so they are only replaced once all the new files are written
     public static void save(File directory) throws IOException {
-        File[] subFiles = directory.listFiles();
-        subFiles = subFiles == null ? new File[0] : Arrays.stream(subFiles).filter(file -> file.getName().endsWith(".diff")).toArray(File[]::new);
-
-        List<File> swapFiles = new ArrayList<>();
-        for (File file : subFiles) {
-            File swapFile = new File(file.getParentFile(), "~" + file.getName() + ".swp");
-            try {
-                Files.move(file.toPath(), swapFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
-                swapFiles.add(swapFile);
-            } catch (IOException ignore) {
-                Files.delete(file.toPath());
+        DiffWatcher.beginSave();
+        try {
+            saveCategories(directory);
+            dirtyCategories.clear();
+        } finally {
+            DiffWatcher.endSave(directory);
+        }
+    }
+
+    private static void saveCategories(File directory) throws IOException {
+        Map<File, File> outputs = new LinkedHashMap<>();
+        List<Runnable> remaps = new ArrayList<>();
+        try {
+            for (Map.Entry<String, UnifiedDiff> category : categories.entrySet()) {
+                File file = new File(directory, category.getKey() + ".diff");
+                File tempFile = new File(directory, "~" + file.getName() + ".tmp");
+                outputs.put(tempFile, file);
+                DiffIndex.write(category.getValue(), tempFile, new DiffIndex.Source(file), remaps);
+            }
+        } catch (IOException e) {
+            for (File tempFile : outputs.keySet())
+                Files.deleteIfExists(tempFile.toPath());
+            throw e;
+        }
+
+        // hunks are read on background threads with this lock held, so none can reopen a file and cache its lines at
+        // the old offsets between the files being replaced and the hunks being pointed at their new offsets
+        synchronized (DiffIndex.class) {
+            DiffIndex.closeSources();
+            File[] subFiles = directory.listFiles();
+            if (subFiles != null) {
+                for (File file : subFiles) {
+                    if (file.getName().endsWith(".diff") && !outputs.containsValue(file))
+                        Files.delete(file.toPath());
+                }
             }
+            for (Map.Entry<File, File> output : outputs.entrySet())
+                Files.move(output.getKey().toPath(), output.getValue().toPath(), StandardCopyOption.REPLACE_EXISTING);
+            remaps.forEach(Runnable::run);
         }
+    }
 
-        for (Map.Entry<String, UnifiedDiff> category : categories.entrySet()) {
-            FileWriter writer = new FileWriter(new File(directory, category.getKey() + ".diff"));
-            UnifiedDiffWriter.write(category.getValue(), null, writer, 0);
-            writer.flush();
-            writer.close();
+    // Only keeps the diff rows and syntax highlighting tokens of the hunks being shown, since the documents already
+    // hold the text of the rest and the tokens are quick to find again for the few hunks which scroll into view.
+    public static void retainDiffRows(Collection<AbstractDelta<String>> shownDeltas) {
+        IdentityHashMap<AbstractDelta<String>, List<DiffRow>> shownDiffRows = new IdentityHashMap<>();
+        for (AbstractDelta<String> delta : shownDeltas) {
+            List<DiffRow> lines = diffRowCache.get(delta);
+            if (lines != null)
+                shownDiffRows.put(delta, lines);
+        }
+        diffRowCache = Collections.synchronizedMap(shownDiffRows);
+        Set<AbstractDelta<String>> shown = Collections.newSetFromMap(new IdentityHashMap<>());
+        shown.addAll(shownDeltas);
+        synchronized (syntaxCache) {
+            syntaxCache.keySet().retainAll(shown);
         }
+    }
+
+    // The end of the window of files shown, which holds roughly WINDOW_HUNKS hunks
+    public static int windowEnd(UnifiedDiff diff) {
+        windowStart = Math.max(0, Math.min(windowStart, diff.getFiles().size() - 1));
+        return windowEnd(diff, windowStart);
+    }
+
+    public static int windowEnd(UnifiedDiff diff, int windowStart) {
+        int end = windowStart;
+        int hunks = 0;
+        while (end < diff.getFiles().size() && (end == windowStart || hunks < WINDOW_HUNKS))
+            hunks += diff.getFiles().get(end++).getPatch().getDeltas().size();
+        return end;
+    }
 
-        for (File swapFile : swapFiles)
-            Files.delete(swapFile.toPath());
+    public static int previousWindowStart(UnifiedDiff diff) {
+        int start = Math.min(windowStart, diff.getFiles().size());
+        int hunks = 0;
+        while (start > 0 && hunks < WINDOW_HUNKS)
+            hunks += diff.getFiles().get(--start).getPatch().getDeltas().size();
+        return start;
     }
 
     public static List<Map<String, Integer>> extractDataExamples(String category) {
@@ -111,12 +229,8 @@ public class ProgramState {
 
         UnifiedDiff diff = categories.get(category);
         for (UnifiedDiffFile file : diff.getFiles()) {
-            for (AbstractDelta<String> delta : file.getPatch().getDeltas()) {
-                Map<String, Integer> example = new HashMap<>();
-                for (String line : delta.getSource().getLines())
-                    extractWordsFromString(line, example);
-                examples.add(example);
-            }
+            for (AbstractDelta<String> delta : file.getPatch().getDeltas())
+                examples.add(extractWords(delta));
         }
 
         return examples;
@@ -140,6 +254,13 @@ public class ProgramState {
         }
     }
 
+    public static Map<String, Integer> extractWords(AbstractDelta<String> delta) {
+        Map<String, Integer> words = new HashMap<>();
+        for (String line : delta.getSource().getLines())
+            extractWordsFromString(line, words);
+        return words;
+    }
+
     private static void extractWordsFromString(String line, Map<String, Integer> words) {
         Matcher matcher = WORD_PATTERN.matcher(line);
         while (matcher.find()) {
@@ -149,141 +270,233 @@ public class ProgramState {
     }
 
     public static void createModel() {
-        features.clear();
-        models.clear();
+        Map<String, List<AbstractDelta<String>>> hunks = new HashMap<>();
+        categories.forEach((category, diff) -> {
+            List<AbstractDelta<String>> deltas = new ArrayList<>();
+            for (UnifiedDiffFile file : diff.getFiles())
+                deltas.addAll(file.getPatch().getDeltas());
+            hunks.put(category, deltas);
+        });
+        trainModel(classifier, currentCategory, hunks);
+
+        modelCategory = currentCategory;
+        modelCategories = new HashSet<>(categories.keySet());
+        modelStale = false;
+    }
 
-        Map<String, List<Map<String, Integer>>> allData = new HashMap<>();
-        for (String category : categories.keySet()) {
-            if (!category.equalsIgnoreCase(currentCategory)) {
-                allData.put(category, extractDataExamples(category));
+    // Trains a new model for sorting the given category, from a snapshot of the hunks in each category. The words of
+    // each hunk are only extracted as the model reads them. In streaming mode the lines are read from disk, so models
+    // which keep every example are trained on a sample of each category rather than all of it.
+    public static void trainModel(HunkClassifier model, String category, Map<String, List<AbstractDelta<String>>> hunks) {
+        Map<String, Iterable<Map<String, Integer>>> allData = new HashMap<>();
+        hunks.forEach((otherCategory, deltas) -> {
+            if (otherCategory.equalsIgnoreCase(category))
+                return;
+            List<AbstractDelta<String>> sample = deltas;
+            if (streaming && !model.isTrainedOnTotals() && deltas.size() > STREAMING_TRAINING_HUNKS) {
+                sample = new ArrayList<>(STREAMING_TRAINING_HUNKS);
+                for (int i = 0; i < STREAMING_TRAINING_HUNKS; i++)
+                    sample.add(deltas.get((int) ((long) i * deltas.size() / STREAMING_TRAINING_HUNKS)));
             }
+            List<AbstractDelta<String>> trainingDeltas = sample;
+            allData.put(otherCategory, () -> trainingDeltas.stream().map(ProgramState::extractWords).iterator());
+        });
+        model.trainStreamed(allData);
+    }
+
+    // Retrains the model only if the set of categories it was trained on has changed, or a model for the current
+    // category hasn't already been prefetched. The model of the category being left is kept in case it's used again.
+    public static void updateModel() {
+        if (!modelStale && Objects.equals(modelCategory, currentCategory) && categories.keySet().equals(modelCategories))
+            return;
+        if (!modelStale && modelCategory != null && categories.keySet().equals(modelCategories)) {
+            CategoryPrefetcher.putModel(modelCategory, classifier, modelCategories);
+            classifier = CLASSIFIERS.get(classifier.getName()).get();
         }
-        List<String> categoryList = allData.keySet().stream().sorted().collect(Collectors.toList());
-        if (categoryList.isEmpty())
+        HunkClassifier prefetched = CategoryPrefetcher.takeModel(currentCategory, classifier.getName(), categories.keySet());
+        if (prefetched == null) {
+            createModel();
             return;
+        }
+        classifier = prefetched;
+        modelCategory = currentCategory;
+        modelCategories = new HashSet<>(categories.keySet());
+        modelStale = false;
+    }
 
-        Map<String, Integer> wordFrequency = allData.values().stream()
-                .flatMap(List::stream)
-                .collect(HashMap::new,
-                        (mapA, mapB) -> mapB.forEach((word, freq) -> mapA.merge(word, freq, Integer::sum)),
-                        (mapA, mapB) -> mapB.forEach((word, freq) -> mapA.merge(word, freq, Integer::sum)));
-
-        List<String> commonWords = wordFrequency.keySet().stream()
-                .sorted(Comparator.<String, Integer>comparing(wordFrequency::get).reversed())
-                .limit(Math.min(20 * categories.size(), (int) (0.9 * allData.values().stream().mapToInt(List::size).sum())))
-                .collect(Collectors.toList());
-        // search for linearly dependent pairs
-        for (int wordA = 0; wordA < commonWords.size(); wordA++) {
-            float firstVal = allData.get(categoryList.get(0)).stream().filter(it -> !it.isEmpty()).findFirst().orElse(Collections.emptyMap()).getOrDefault(commonWords.get(wordA), 0);
-            boolean allSameA = true;
-            float lengthA = 0;
-            for (String ctgy : categoryList) {
-                for (Map<String, Integer> example : allData.get(ctgy)) {
-                    float val = example.getOrDefault(commonWords.get(wordA), 0);
-                    if (Math.abs(val - firstVal) > 0.001)
-                        allSameA = false;
-                    lengthA += val * val;
-                }
-            }
-            if (allSameA) {
-                commonWords.remove(wordA--);
-                continue;
-            }
-            lengthA = (float)Math.sqrt(lengthA);
-
-            int wordB;
-            innerWordLoop:
-            for (wordB = 0; wordB < wordA; wordB++) {
-                float lengthB = 0;
-                for (String ctgy : categoryList) {
-                    for (Map<String, Integer> example : allData.get(ctgy)) {
-                        float val = example.getOrDefault(commonWords.get(wordB), 0);
-                        lengthB += val * val;
-                    }
-                }
-                lengthB = (float)Math.sqrt(lengthB);
-
-                for (String ctgy : categoryList) {
-                    for (Map<String, Integer> example : allData.get(ctgy)) {
-                        if (Math.abs(example.getOrDefault(commonWords.get(wordA), 0) / lengthA - example.getOrDefault(commonWords.get(wordB), 0) / lengthB) > 0.001) {
-                            continue innerWordLoop;
-                        }
-                    }
-                }
+    // Moves a whole file out of the current category
+    public static void moveFile(UnifiedDiffFile file, String toCategory) {
+        UnifiedDiff thisCategory = categories.get(currentCategory);
+        UnifiedDiff newCategory = categories.get(toCategory);
+        thisCategory.getFiles().removeIf(f -> f == file);
+        // files without hunks, such as "Only in" lines, still change both categories
+        dirtyCategories.add(currentCategory);
+        dirtyCategories.add(toCategory);
+        CategoryPrefetcher.invalidate(currentCategory);
+        CategoryPrefetcher.invalidate(toCategory);
+        hunksMoved(file.getPatch().getDeltas(), currentCategory, toCategory);
+        UnifiedDiffFile newFile = findFile(newCategory, file);
+        if (newFile == null)
+            newCategory.getFiles().add(file);
+        else {
+            for (AbstractDelta<String> delta : file.getPatch().getDeltas())
+                newFile.getPatch().addDelta(delta);
+        }
+    }
 
-                break;
-            }
+    // Moves a hunk out of the given file in the current category
+    public static void moveHunk(UnifiedDiffFile file, AbstractDelta<String> delta, String toCategory) {
+        UnifiedDiff thisCategory = categories.get(currentCategory);
+        UnifiedDiff newCategory = categories.get(toCategory);
+        file.getPatch().getDeltas().removeIf(d -> d == delta);
+        hunksMoved(Collections.singletonList(delta), currentCategory, toCategory);
+        if (file.getPatch().getDeltas().isEmpty())
+            thisCategory.getFiles().removeIf(f -> f == file);
+        UnifiedDiffFile newFile = findFile(newCategory, file);
+        if (newFile == null) {
+            newFile = copyFile(file);
+            newCategory.getFiles().add(newFile);
+        }
+        newFile.getPatch().addDelta(delta);
+    }
 
-            if (wordB == wordA) { // no equivalent found
-                ArrayList<String> feature = new ArrayList<>(1);
-                feature.add(commonWords.get(wordA));
-                features.add(feature);
-            } else {
-                features.get(wordB).add(commonWords.remove(wordA--));
+    // Moves those of the given hunks which are still in the current category. Each file is only visited once, so
+    // moving a large cluster takes time in proportion to the size of the two categories.
+    public static void moveHunks(Collection<AbstractDelta<String>> deltas, String toCategory) {
+        Set<AbstractDelta<String>> toMove = Collections.newSetFromMap(new IdentityHashMap<>());
+        toMove.addAll(deltas);
+        UnifiedDiff thisCategory = categories.get(currentCategory);
+        UnifiedDiff newCategory = categories.get(toCategory);
+        Map<List<String>, UnifiedDiffFile> newFiles = new HashMap<>();
+        for (UnifiedDiffFile file : newCategory.getFiles())
+            newFiles.putIfAbsent(fileKey(file), file);
+
+        Set<UnifiedDiffFile> emptiedFiles = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<AbstractDelta<String>> moved = new ArrayList<>();
+        for (UnifiedDiffFile file : thisCategory.getFiles()) {
+            List<AbstractDelta<String>> movedFromFile = new ArrayList<>();
+            file.getPatch().getDeltas().removeIf(delta -> toMove.contains(delta) && movedFromFile.add(delta));
+            if (movedFromFile.isEmpty())
+                continue;
+            if (file.getPatch().getDeltas().isEmpty())
+                emptiedFiles.add(file);
+            UnifiedDiffFile newFile = newFiles.get(fileKey(file));
+            if (newFile == null) {
+                newFile = copyFile(file);
+                newCategory.getFiles().add(newFile);
+                newFiles.put(fileKey(file), newFile);
             }
+            for (AbstractDelta<String> delta : movedFromFile)
+                newFile.getPatch().addDelta(delta);
+            moved.addAll(movedFromFile);
         }
+        if (!emptiedFiles.isEmpty())
+            thisCategory.getFiles().removeIf(emptiedFiles::contains);
+        hunksMoved(moved, currentCategory, toCategory);
+    }
 
-        if (features.isEmpty())
-            return;
-
-        FMatrixRMaj y = new FMatrixRMaj(allData.values().stream().mapToInt(List::size).sum(), 1);
-        FMatrixRMaj X = new FMatrixRMaj(y.numRows, features.size() + 1);
-        int index = 0, prevIndex;
-        for (String category : categoryList) {
-            List<Map<String, Integer>> examples = allData.get(category);
-            for (int i = 0; i < examples.size(); i++) {
-                Map<String, Integer> example = examples.get(i);
-                for (int j = 0; j < features.size(); j++) {
-                    int count = features.get(j).stream().mapToInt(word -> example.getOrDefault(word, 0)).sum();
-                    X.set(index + i, j, count);
-                }
-                X.set(index + i, features.size(), 1);
-            }
-            index += examples.size();
+    private static UnifiedDiffFile findFile(UnifiedDiff diff, UnifiedDiffFile file) {
+        for (UnifiedDiffFile f : diff.getFiles()) {
+            if (Objects.equals(f.getDiffCommand(), file.getDiffCommand()) && Objects.equals(f.getFromFile(), file.getFromFile()) && Objects.equals(f.getToFile(), file.getToFile()))
+                return f;
         }
+        return null;
+    }
+
+    // The same file in two categories has the same key, see findFile
+    private static List<String> fileKey(UnifiedDiffFile file) {
+        return Arrays.asList(file.getDiffCommand(), file.getFromFile(), file.getToFile());
+    }
+
+    // An empty file with the same header as the given one
+    private static UnifiedDiffFile copyFile(UnifiedDiffFile file) {
+        UnifiedDiffFile newFile = new UnifiedDiffFile();
+        newFile.setDiffCommand(file.getDiffCommand());
+        newFile.setFromFile(file.getFromFile());
+        newFile.setToFile(file.getToFile());
+        newFile.setIndex(file.getIndex());
+        DiffIndex.Range headerRange = fileHeaderRanges.get(file);
+        if (headerRange != null)
+            fileHeaderRanges.put(newFile, headerRange.copy());
+        return newFile;
+    }
 
-        FMatrixRMaj XTXinv = new FMatrixRMaj(features.size() + 1, features.size() + 1);
-        CommonOps_FDRM.multTransA(X, X, XTXinv);
-        CommonOps_FDRM.invert(XTXinv);
-        FMatrixRMaj XTXinvXT = new FMatrixRMaj(features.size() + 1, y.numRows);
-        CommonOps_FDRM.multTransB(XTXinv, X, XTXinvXT);
-        //noinspection UnusedAssignment
-        XTXinv = null;
-
-        index = 0;
-        prevIndex = 0;
-        for (String category : categoryList) {
-            List<Map<String, Integer>> examples = allData.get(category);
-            Arrays.fill(y.data, prevIndex, index, 0);
-            prevIndex = index;
-            index += examples.size();
-            Arrays.fill(y.data, prevIndex, index, 1);
-
-            FMatrixRMaj beta = new FMatrixRMaj(features.size() + 1, 1);
-            CommonOps_FDRM.mult(XTXinvXT, y, beta);
-            models.put(category, beta);
+    private static void hunksMoved(Collection<AbstractDelta<String>> deltas, String fromCategory, String toCategory) {
+        dirtyCategories.add(fromCategory);
+        dirtyCategories.add(toCategory);
+        // the clusters are only trimmed once each, however many of their hunks moved
+        Set<List<AbstractDelta<String>>> changedClusters = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (AbstractDelta<String> delta : deltas) {
+            SearchIndex.hunkMoved(delta, toCategory);
+            List<AbstractDelta<String>> cluster = clusters.remove(delta);
+            if (cluster != null)
+                changedClusters.add(cluster);
+            hunkMoved(extractWords(delta), fromCategory, toCategory);
         }
+        if (!changedClusters.isEmpty()) {
+            Set<AbstractDelta<String>> moved = Collections.newSetFromMap(new IdentityHashMap<>());
+            moved.addAll(deltas);
+            for (List<AbstractDelta<String>> cluster : changedClusters)
+                cluster.removeIf(moved::contains);
+        }
+    }
+
+    public static void hunkMoved(Map<String, Integer> words, String fromCategory, String toCategory) {
+        if (!classifier.update(words, fromCategory, toCategory))
+            modelStale = true;
+        CategoryPrefetcher.hunkMoved(words, fromCategory, toCategory);
     }
 
-    // Returns the probability that the given set of words fits in the given category
-    public static float fitsInCategory(Map<String, Integer> words, String category) {
-        FMatrixRMaj model = models.get(category);
-        if (model == null)
-            return 0.5f;
+    // Called when a category was replaced with a new version from disk. The old hunks are counted out of the models and
+    // the new ones in, unless the models can't be updated incrementally or, in streaming mode, the old hunks read their
+    // lines from the file which just changed. Returns whether the current model has to be retrained.
+    public static boolean categoryReloaded(String category, Collection<AbstractDelta<String>> oldDeltas, Collection<AbstractDelta<String>> newDeltas) {
+        if (streaming) {
+            modelStale = true;
+            CategoryPrefetcher.categoryReloaded(category, null, null);
+            return true;
+        }
+        List<Map<String, Integer>> oldWords = new ArrayList<>(oldDeltas.size());
+        for (AbstractDelta<String> delta : oldDeltas)
+            oldWords.add(extractWords(delta));
+        List<Map<String, Integer>> newWords = new ArrayList<>(newDeltas.size());
+        for (AbstractDelta<String> delta : newDeltas)
+            newWords.add(extractWords(delta));
+        if (!updateModel(classifier, category, oldWords, newWords))
+            modelStale = true;
+        CategoryPrefetcher.categoryReloaded(category, oldWords, newWords);
+        return modelStale;
+    }
 
-        FMatrixRMaj x = new FMatrixRMaj(features.size() + 1, 1);
-        for (int i = 0; i < features.size(); i++) {
-            int count = features.get(i).stream().mapToInt(word -> words.getOrDefault(word, 0)).sum();
-            x.set(i, 0, count);
+    // Returns false if the model couldn't be updated and has to be retrained
+    static boolean updateModel(HunkClassifier model, String category, List<Map<String, Integer>> oldWords, List<Map<String, Integer>> newWords) {
+        for (Map<String, Integer> words : oldWords) {
+            if (!model.update(words, category, null))
+                return false;
         }
-        x.set(features.size(), 0, 1);
+        for (Map<String, Integer> words : newWords) {
+            if (!model.update(words, null, category))
+                return false;
+        }
+        return true;
+    }
 
-        FMatrixRMaj result = new FMatrixRMaj(1, 1);
-        CommonOps_FDRM.multTransA(model, x, result);
+    public static void setClassifier(HunkClassifier classifier) {
+        ProgramState.classifier = classifier;
+        modelStale = true;
+    }
+
+    public static HunkClassifier getClassifier() {
+        return classifier;
+    }
 
-        float y = result.get(0, 0);
-        if (!Float.isFinite(y)) y = 0;
-        return (y / (1 + Math.abs(y)) + 1) * 0.5f;
+    public static Map<String, Float> categoryProbabilities(Map<String, Integer> words) {
+        Map<String, Float> probabilities = new HashMap<>(classifier.scoreAll(words));
+        for (String category : categories.keySet()) {
+            if (!category.equalsIgnoreCase(currentCategory))
+                probabilities.putIfAbsent(category, 0.5f);
+        }
+        return probabilities;
     }
 
     public static class HunkPos {
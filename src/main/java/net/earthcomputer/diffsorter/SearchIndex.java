@@ -0,0 +1,172 @@
+package net.earthcomputer.diffsorter;
+
+import com.github.difflib.patch.AbstractDelta;
+import com.github.difflib.unifieddiff.UnifiedDiff;
+import com.github.difflib.unifieddiff.UnifiedDiffFile;
+
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.stream.Collectors;
+
+/**
+ * An inverted index from the words in the hunks to the hunks containing them, for searching within a category.
+ * Each hunk gets an int id, and each word has a sorted array of the ids of the hunks it appears in. Moving a hunk
+ * only changes the category stored against its id, so the posting lists never need to be rebuilt.
+ * <p>
+ * The index is only built when something is first searched for, since building it reads every hunk, which in streaming
+ * mode means reading the whole project from disk again. It holds an int for each distinct word in each hunk, so unlike
+ * the rest of the streaming mode state it grows with the size of the project.
+ */
+public class SearchIndex {
+
+    private static final Map<String, PostingList> postings = new HashMap<>();
+    private static final List<AbstractDelta<String>> hunks = new ArrayList<>();
+    private static final IdentityHashMap<AbstractDelta<String>, Integer> hunkIds = new IdentityHashMap<>();
+    // the category each hunk is in, or null if it has been removed
+    private static final List<String> hunkCategories = new ArrayList<>();
+    // whether the index has been built since the project was loaded
+    private static boolean built;
+
+    public static synchronized void clear() {
+        postings.clear();
+        hunks.clear();
+        hunkIds.clear();
+        hunkCategories.clear();
+        built = false;
+    }
+
+    private static void build(Map<String, UnifiedDiff> categories) {
+        List<AbstractDelta<String>> deltas = new ArrayList<>();
+        List<String> deltaCategories = new ArrayList<>();
+        categories.forEach((category, diff) -> {
+            for (UnifiedDiffFile file : diff.getFiles()) {
+                for (AbstractDelta<String> delta : file.getPatch().getDeltas()) {
+                    deltas.add(delta);
+                    deltaCategories.add(category);
+                }
+            }
+        });
+        // extracting the words is the slow part, so it's done in parallel before the ids are handed out in order
+        List<Set<String>> words = deltas.parallelStream().map(SearchIndex::extractWords).collect(Collectors.toList());
+        for (int i = 0; i < deltas.size(); i++)
+            add(deltas.get(i), deltaCategories.get(i), words.get(i));
+        postings.values().forEach(PostingList::trim);
+        built = true;
+    }
+
+    public static synchronized void add(AbstractDelta<String> delta, String category) {
+        if (built)
+            add(delta, category, extractWords(delta));
+    }
+
+    private static void add(AbstractDelta<String> delta, String category, Set<String> words) {
+        int id = hunks.size();
+        hunks.add(delta);
+        hunkIds.put(delta, id);
+        hunkCategories.add(category);
+        for (String word : words)
+            postings.computeIfAbsent(word, k -> new PostingList()).add(id);
+    }
+
+    // The ids of removed hunks stay in the posting lists, but are never returned
+    public static synchronized void remove(AbstractDelta<String> delta) {
+        if (!built)
+            return;
+        Integer id = hunkIds.remove(delta);
+        if (id != null) {
+            hunks.set(id, null);
+            hunkCategories.set(id, null);
+        }
+    }
+
+    public static synchronized void hunkMoved(AbstractDelta<String> delta, String toCategory) {
+        if (!built)
+            return;
+        Integer id = hunkIds.get(delta);
+        if (id != null)
+            hunkCategories.set(id, toCategory);
+    }
+
+    // Returns the hunks in the category which contain all the words in the query, ignoring case. The first search
+    // builds the index, and is made on the event thread by the refresh which follows a new query.
+    public static synchronized Set<AbstractDelta<String>> search(String query, String category) {
+        if (!built)
+            build(ProgramState.categories);
+        Set<AbstractDelta<String>> result = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<PostingList> lists = new ArrayList<>();
+        for (String word : extractWords(query)) {
+            PostingList list = postings.get(word);
+            if (list == null)
+                return result;
+            lists.add(list);
+        }
+        if (lists.isEmpty())
+            return result;
+
+        // intersect starting from the shortest list, so the candidates only ever get fewer
+        lists.sort(Comparator.comparingInt(list -> list.size));
+        PostingList shortest = lists.get(0);
+        int[] positions = new int[lists.size()];
+        candidates:
+        for (int i = 0; i < shortest.size; i++) {
+            int id = shortest.ids[i];
+            if (!category.equals(hunkCategories.get(id)))
+                continue;
+            for (int j = 1; j < lists.size(); j++) {
+                PostingList list = lists.get(j);
+                positions[j] = list.seek(positions[j], id);
+                if (positions[j] == list.size)
+                    break candidates;
+                if (list.ids[positions[j]] != id)
+                    continue candidates;
+            }
+            result.add(hunks.get(id));
+        }
+        return result;
+    }
+
+    private static Set<String> extractWords(AbstractDelta<String> delta) {
+        Set<String> words = new HashSet<>();
+        for (String line : delta.getSource().getLines())
+            extractWords(line, words);
+        for (String line : delta.getTarget().getLines())
+            extractWords(line, words);
+        return words;
+    }
+
+    private static Set<String> extractWords(String text) {
+        Set<String> words = new LinkedHashSet<>();
+        extractWords(text, words);
+        return words;
+    }
+
+    private static void extractWords(String text, Set<String> words) {
+        Matcher matcher = ProgramState.WORD_PATTERN.matcher(text);
+        while (matcher.find())
+            words.add(matcher.group().toLowerCase(Locale.ROOT));
+    }
+
+    private static class PostingList {
+        int[] ids = new int[2];
+        int size;
+
+        // ids are always added in increasing order, so the list stays sorted
+        void add(int id) {
+            if (size == ids.length)
+                ids = Arrays.copyOf(ids, size * 2);
+            ids[size++] = id;
+        }
+
+        void trim() {
+            if (size != ids.length)
+                ids = Arrays.copyOf(ids, size);
+        }
+
+        // Returns the index of the first id which is at least the given id, searching from the given index
+        int seek(int from, int id) {
+            int index = Arrays.binarySearch(ids, from, size, id);
+            return index < 0 ? -index - 1 : index;
+        }
+    }
+
+}
@@ -0,0 +1,92 @@
+package net.earthcomputer.diffsorter;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Generates a fully sorted project of Java-like hunks with anonymised identifiers, so that the classifiers can be
+ * evaluated without a real project. Each category draws most of its identifiers from its own overlapping subset of a
+ * shared pool, with a heavy bias towards a few of them, similar to a remapping diff.
+ */
+public class SyntheticProject {
+
+    private static final String[] COMMON_WORDS = {
+            "public", "private", "protected", "static", "final", "void", "int", "boolean", "return", "this", "new",
+            "if", "else", "for", "while", "null", "true", "false", "String", "List", "Map", "get", "set", "size"
+    };
+    private static final int IDENTIFIER_POOL_SIZE = 400;
+    private static final int IDENTIFIERS_PER_CATEGORY = 40;
+
+    public static void generate(File directory, long seed, int categoryCount, int hunksPerCategory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Could not create " + directory);
+
+        Random rand = new Random(seed);
+        String[] pool = new String[IDENTIFIER_POOL_SIZE];
+        String[] kinds = {"field", "method", "class"};
+        for (int i = 0; i < pool.length; i++)
+            pool[i] = kinds[rand.nextInt(kinds.length)] + "_" + (1000 + rand.nextInt(9000));
+
+        int classId = 0;
+        for (int category = 0; category < categoryCount; category++) {
+            String[] vocabulary = new String[IDENTIFIERS_PER_CATEGORY];
+            for (int i = 0; i < vocabulary.length; i++)
+                vocabulary[i] = pool[rand.nextInt(pool.length)];
+
+            File file = new File(directory, "category" + category + ".diff");
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+                int hunks = 0;
+                while (hunks < hunksPerCategory) {
+                    String path = "net/example/Class" + (classId++) + ".java";
+                    writer.write("diff -r a/" + path + " b/" + path + "\n");
+                    writer.write("--- a/" + path + "\n");
+                    writer.write("+++ b/" + path + "\n");
+                    int hunksInFile = Math.min(1 + rand.nextInt(5), hunksPerCategory - hunks);
+                    int lineNumber = 1;
+                    for (int hunk = 0; hunk < hunksInFile; hunk++) {
+                        lineNumber += 5 + rand.nextInt(50);
+                        writeHunk(writer, rand, vocabulary, lineNumber);
+                    }
+                    hunks += hunksInFile;
+                }
+            }
+        }
+
+        // fully sorted
+        new FileOutputStream(new File(directory, "unsorted.diff")).close();
+    }
+
+    private static void writeHunk(Writer writer, Random rand, String[] vocabulary, int lineNumber) throws IOException {
+        int context = 1 + rand.nextInt(3);
+        int changed = 1 + rand.nextInt(4);
+        writer.write(String.format("@@ -%d,%d +%d,%d @@\n", lineNumber, context + changed, lineNumber, context + changed));
+        for (int i = 0; i < context; i++)
+            writer.write(" " + randomLine(rand, vocabulary, 0.8f) + "\n");
+        String[] oldLines = new String[changed];
+        for (int i = 0; i < changed; i++) {
+            oldLines[i] = randomLine(rand, vocabulary, 0.5f);
+            writer.write("-" + oldLines[i] + "\n");
+        }
+        for (int i = 0; i < changed; i++)
+            writer.write("+" + oldLines[i].replace(vocabulary[0], vocabulary[1]) + "\n");
+    }
+
+    private static String randomLine(Random rand, String[] vocabulary, float commonChance) {
+        StringBuilder line = new StringBuilder("    ");
+        int words = 3 + rand.nextInt(6);
+        for (int i = 0; i < words; i++) {
+            if (i != 0)
+                line.append(' ');
+            if (rand.nextFloat() < commonChance) {
+                line.append(COMMON_WORDS[rand.nextInt(COMMON_WORDS.length)]);
+            } else {
+                // square the random number to favour the first few identifiers
+                float r = rand.nextFloat();
+                line.append(vocabulary[(int) (r * r * vocabulary.length)]);
+            }
+        }
+        return line.append(';').toString();
+    }
+
+}
@@ -0,0 +1,170 @@
+package net.earthcomputer.diffsorter;
+
+import com.github.difflib.patch.AbstractDelta;
+import com.github.difflib.unifieddiff.UnifiedDiff;
+import com.github.difflib.unifieddiff.UnifiedDiffFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class SaveRoundTripTest {
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("diffsorter").toFile();
+        SyntheticProject.generate(directory, 42, 3, 60);
+    }
+
+    @After
+    public void tearDown() {
+        DiffIndex.clear();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files)
+                assertTrue(file.delete());
+        }
+        assertTrue(directory.delete());
+    }
+
+    @Test
+    public void testMoveAndSave() throws IOException {
+        moveAndSave(false);
+    }
+
+    @Test
+    public void testMoveAndSaveStreaming() throws IOException {
+        moveAndSave(true);
+    }
+
+    private void moveAndSave(boolean streaming) throws IOException {
+        ProgramState.load(null, directory, streaming);
+        ProgramState.currentCategory = "category0";
+        // remember the text of every hunk before anything is written
+        Map<AbstractDelta<String>, String> text = new IdentityHashMap<>();
+        for (UnifiedDiff diff : ProgramState.categories.values()) {
+            for (UnifiedDiffFile file : diff.getFiles()) {
+                for (AbstractDelta<String> delta : file.getPatch().getDeltas())
+                    text.put(delta, format(delta));
+            }
+        }
+
+        // a hunk without a range makes its whole file be formatted rather than copied
+        List<UnifiedDiffFile> files = ProgramState.categories.get("category0").getFiles();
+        UnifiedDiffFile mixedFile = files.stream().filter(f -> f.getPatch().getDeltas().size() >= 3).findFirst().orElse(null);
+        assertNotNull(mixedFile);
+        ProgramState.hunkRanges.remove(mixedFile.getPatch().getDeltas().get(0));
+        ProgramState.save(directory);
+
+        // the other hunks of that file are copied out of it on the next save
+        ProgramState.moveHunk(mixedFile, mixedFile.getPatch().getDeltas().get(1), "category1");
+        UnifiedDiffFile otherFile = files.stream().filter(f -> f != mixedFile).findFirst().orElse(null);
+        assertNotNull(otherFile);
+        ProgramState.moveFile(otherFile, "category2");
+        // the file is in category1 already
+        ProgramState.moveHunks(new ArrayList<>(mixedFile.getPatch().getDeltas().subList(1, 2)), "category1");
+        Map<String, List<String>> expected = describe(ProgramState.categories, text::get);
+        ProgramState.save(directory);
+        ProgramState.save(directory);
+
+        ProgramState.load(null, directory, streaming);
+        assertEquals(expected, describe(ProgramState.categories, SaveRoundTripTest::format));
+    }
+
+    @Test
+    public void testReloadAfterMovingOnlyInFile() throws IOException {
+        reloadAfterMovingOnlyInFile(false);
+    }
+
+    @Test
+    public void testReloadAfterMovingOnlyInFileStreaming() throws IOException {
+        reloadAfterMovingOnlyInFile(true);
+    }
+
+    private void reloadAfterMovingOnlyInFile(boolean streaming) throws IOException {
+        File category0 = new File(directory, "category0.diff");
+        String contents = new String(Files.readAllBytes(category0.toPath()), StandardCharsets.UTF_8);
+        Files.write(category0.toPath(), (contents + "Only in a/net/example: Extra.java\n").getBytes(StandardCharsets.UTF_8));
+        ProgramState.load(null, directory, streaming);
+        ProgramState.currentCategory = "category0";
+        UnifiedDiffFile onlyIn = ProgramState.categories.get("category0").getFiles().stream()
+                .filter(f -> f.getDiffCommand() != null && f.getDiffCommand().startsWith("Only in")).findFirst().orElse(null);
+        assertNotNull(onlyIn);
+        ProgramState.moveFile(onlyIn, "category1");
+
+        // everything in the file moves along when it's changed on disk
+        String newFile = "diff -r a/New.java b/New.java\n--- a/New.java\n+++ b/New.java\n@@ -1,1 +1,1 @@\n-old\n+new\n";
+        Files.write(category0.toPath(), (newFile + contents).getBytes(StandardCharsets.UTF_8));
+        DiffWatcher.reloadNow(directory, category0);
+        Map<String, List<String>> expected = describe(ProgramState.categories, SaveRoundTripTest::format);
+        ProgramState.save(directory);
+
+        ProgramState.load(null, directory, streaming);
+        assertEquals(expected, describe(ProgramState.categories, SaveRoundTripTest::format));
+    }
+
+    @Test
+    public void testMoveAfterMissingFinalNewline() throws IOException {
+        moveAfterMissingFinalNewline(false);
+    }
+
+    @Test
+    public void testMoveAfterMissingFinalNewlineStreaming() throws IOException {
+        moveAfterMissingFinalNewline(true);
+    }
+
+    private void moveAfterMissingFinalNewline(boolean streaming) throws IOException {
+        File category0 = new File(directory, "category0.diff");
+        String contents = new String(Files.readAllBytes(category0.toPath()), StandardCharsets.UTF_8);
+        assertTrue(contents.endsWith("\n"));
+        Files.write(category0.toPath(), contents.substring(0, contents.length() - 1).getBytes(StandardCharsets.UTF_8));
+        ProgramState.load(null, directory, streaming);
+
+        // the last hunk of category0 is followed by the moved file
+        ProgramState.currentCategory = "category1";
+        ProgramState.moveFile(ProgramState.categories.get("category1").getFiles().get(0), "category0");
+        ProgramState.save(directory);
+        // the hunks are copied from their new offsets this time
+        ProgramState.currentCategory = "category0";
+        ProgramState.moveFile(ProgramState.categories.get("category0").getFiles().get(0), "category2");
+        Map<String, List<String>> expected = describe(ProgramState.categories, SaveRoundTripTest::format);
+        ProgramState.save(directory);
+
+        ProgramState.load(null, directory, streaming);
+        assertEquals(expected, describe(ProgramState.categories, SaveRoundTripTest::format));
+    }
+
+    private static Map<String, List<String>> describe(Map<String, UnifiedDiff> categories, java.util.function.Function<AbstractDelta<String>, String> text) {
+        Map<String, List<String>> description = new TreeMap<>();
+        categories.forEach((category, diff) -> {
+            List<String> lines = new ArrayList<>();
+            for (UnifiedDiffFile file : diff.getFiles()) {
+                lines.add(file.getDiffCommand() + " " + file.getFromFile() + " " + file.getToFile());
+                for (AbstractDelta<String> delta : file.getPatch().getDeltas())
+                    lines.add(text.apply(delta));
+            }
+            description.put(category, lines);
+        });
+        return description;
+    }
+
+    private static String format(AbstractDelta<String> delta) {
+        StringBuilder text = new StringBuilder();
+        text.append(delta.getSource().getPosition()).append(",").append(delta.getTarget().getPosition());
+        for (String line : delta.getSource().getLines())
+            text.append("\n-").append(line);
+        for (String line : delta.getTarget().getLines())
+            text.append("\n+").append(line);
+        return text.toString();
+    }
+
+}